@@ -2,17 +2,28 @@ package com.magento.devsync;
 
 import java.io.File;
 import java.net.ConnectException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
 
 import com.magento.devsync.client.ClientMaster;
 import com.magento.devsync.communications.Channel;
 import com.magento.devsync.communications.ChannelMultiplexer;
+import com.magento.devsync.communications.ConnectionLost;
+import com.magento.devsync.communications.FileHashes;
+import com.magento.devsync.communications.FingerprintCache;
 import com.magento.devsync.communications.Logger;
 import com.magento.devsync.communications.Reactor;
+import com.magento.devsync.communications.Requestor;
+import com.magento.devsync.communications.StripedWrite;
+import com.magento.devsync.communications.SyncTreeWalker;
 import com.magento.devsync.config.YamlFile;
+import com.magento.devsync.filewatcher.FileWatcher;
+import com.magento.devsync.filewatcher.PollingBackend;
 import com.magento.devsync.filewatcher.ModifiedFileHistory;
 
 
@@ -23,6 +34,17 @@ public class DevsyncClientMain {
 
     public static final String VERSION = "0.1";
 
+    /**
+     * Delay before the first attempt to reconnect after losing the
+     * connection, doubled after each failed attempt.
+     */
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 1000;
+
+    /**
+     * Longest delay between attempts to reconnect.
+     */
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30 * 1000;
+
     private static Logger logger;
 
     public static void main(String[] args) {
@@ -31,6 +53,11 @@ public class DevsyncClientMain {
         boolean debugMode = false;
         boolean verboseMode = false;
         boolean forceProjectInitialization = false;
+        boolean compress = true;
+        boolean cacheFingerprints = true;
+        boolean paranoid = false;
+        boolean reconnect = true;
+        List<String> hashes = FileHashes.names();
         
         int arg = 0;
         while (arg < args.length) {
@@ -46,6 +73,48 @@ public class DevsyncClientMain {
             } else if (args[arg].equals("--init-project")) {
                 forceProjectInitialization = true;
                 arg++;
+            } else if (args[arg].equals("--no-compress")) {
+                compress = false;
+                arg++;
+            } else if (args[arg].equals("--no-fingerprint-cache")) {
+                cacheFingerprints = false;
+                arg++;
+            } else if (args[arg].equals("--no-reconnect")) {
+                // Exit when the connection is lost, as before.
+                reconnect = false;
+                arg++;
+            } else if (args[arg].equals("--paranoid")) {
+                // Hash every file rather than trusting sizes and times.
+                paranoid = true;
+                arg++;
+            } else if (arg + 2 <= args.length && args[arg].equals("--hash-threads")) {
+                SyncTreeWalker.setParallelism(Integer.parseInt(args[arg + 1]));
+                arg += 2;
+            } else if (args[arg].equals("--spinning-disk")) {
+                // Parallel reads only make the disk seek.
+                SyncTreeWalker.setParallelism(SyncTreeWalker.SPINNING_DISK_PARALLELISM);
+                arg++;
+            } else if (arg + 2 <= args.length && args[arg].equals("--watch-quiet")) {
+                // Send changes once files have been left alone this long.
+                FileWatcher.setQuietMillis(Long.parseLong(args[arg + 1]));
+                arg += 2;
+            } else if (arg + 2 <= args.length && args[arg].equals("--watch-max-delay")) {
+                // But do not hold them back longer than this.
+                FileWatcher.setMaxDelayMillis(Long.parseLong(args[arg + 1]));
+                arg += 2;
+            } else if (arg + 2 <= args.length && args[arg].equals("--poll-max-interval")) {
+                // Scan polled directories that never change at least this often.
+                PollingBackend.setMaxIntervalMillis(Long.parseLong(args[arg + 1]));
+                arg += 2;
+            } else if (arg + 2 <= args.length && args[arg].equals("--hash")) {
+                // Ask for this hash in preference to the others.
+                if (FileHashes.byName(args[arg + 1]) == null) {
+                    System.err.println("Unknown hash '" + args[arg + 1] + "', expected one of " + hashes + ".");
+                    System.exit(1);
+                }
+                hashes.remove(args[arg + 1]);
+                hashes.add(0, args[arg + 1]);
+                arg += 2;
             } else {
                 System.err.println("Unknown command line option '" + args[arg] + "'.");
                 System.exit(1);
@@ -53,6 +122,9 @@ public class DevsyncClientMain {
         }
         
         logger = new Logger("C", quietMode, debugMode, verboseMode);
+        if (cacheFingerprints) {
+            FingerprintCache.open(new File(System.getProperty("user.home"), ".devsync/client-fingerprints"), logger);
+        }
 
         try {
             logger.info("Devsync version " + VERSION + "\n");
@@ -62,45 +134,93 @@ public class DevsyncClientMain {
             String host = getHost();
             int portNum = getPort();
 
-            try (Socket sock = new Socket(host, portNum)) {
-                logger.info("Connected to server.");
-
-                ChannelMultiplexer multiplexer = new ChannelMultiplexer(sock);
-                Channel toServerChannel = new Channel(0, multiplexer);
-                Channel fromServerChannel = new Channel(1, multiplexer);
-                Thread multiThread = new Thread(multiplexer, "Client-Multiplexer");
-                multiThread.setDaemon(true);
-                multiThread.start();
-
-                ModifiedFileHistory history = new ModifiedFileHistory();
-
-                // We are going to start communicating before loading config file,
-                // as we may download it from the server.
-                Reactor slave = new Reactor(fromServerChannel, logger, history);
-                Thread slaveThread = new Thread(slave, "Client-Slave");
-                slaveThread.setDaemon(true);
-                slaveThread.start();
-
-                ClientMaster master = new ClientMaster(toServerChannel, logger, history);
-                master.preConfigHandshake(forceProjectInitialization);
-
-                // Load up configuration file.
-                byte[] encoded = Files.readAllBytes(Paths.get(getConfigFile()));
-                String yamlContents = new String(encoded, StandardCharsets.UTF_8);
-                YamlFile config = YamlFile.parseYaml(yamlContents);
-                master.setConfig(config);
-
-                slave.setClientMaster(master);
-                master.run();
-                System.exit(0);
-
-            } catch (ConnectException e) {
-                logger.warn("Failed to connect to server.");
-                logger.debug(e);
-                System.exit(1);
-            } catch (Exception e) {
-                logger.warn(e);
-                System.exit(1);
+            // The history, master and its file watcher carry on across
+            // connections, so after reconnecting only what changed needs
+            // syncing.
+            ModifiedFileHistory history = new ModifiedFileHistory();
+            ClientMaster master = null;
+            long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+
+            while (true) {
+
+                // Opened as a channel so file contents can be sent with transferTo().
+                try (SocketChannel sock = SocketChannel.open(new InetSocketAddress(host, portNum))) {
+                    logger.info("Connected to server.");
+
+                    ChannelMultiplexer multiplexer = new ChannelMultiplexer(sock.socket());
+                    Channel toServerChannel = new Channel(0, multiplexer);
+                    Channel fromServerChannel = new Channel(1, multiplexer);
+                    List<Requestor> stripes = StripedWrite.createRequestors(multiplexer, StripedWrite.CLIENT_TO_SERVER_CHANNEL, logger);
+                    StripedWrite.createReactors(multiplexer, StripedWrite.SERVER_TO_CLIENT_CHANNEL, logger);
+                    Thread multiThread = new Thread(multiplexer, "Client-Multiplexer");
+                    multiThread.setDaemon(true);
+                    multiThread.start();
+
+                    // We are going to start communicating before loading config file,
+                    // as we may download it from the server.
+                    Reactor slave = new Reactor(fromServerChannel, logger, history);
+                    Thread slaveThread = new Thread(slave, "Client-Slave");
+                    slaveThread.setDaemon(true);
+                    slaveThread.start();
+
+                    boolean firstConnection = master == null;
+                    if (firstConnection) {
+                        master = new ClientMaster(toServerChannel, logger, history);
+                        master.setStripes(stripes);
+                    } else {
+                        master.reconnect(toServerChannel, stripes);
+                    }
+                    slave.setClientMaster(master);
+                    master.preConfigHandshake(forceProjectInitialization && firstConnection, compress, hashes, paranoid);
+
+                    if (firstConnection) {
+                        // Load up configuration file.
+                        byte[] encoded = Files.readAllBytes(Paths.get(getConfigFile()));
+                        String yamlContents = new String(encoded, StandardCharsets.UTF_8);
+                        YamlFile config = YamlFile.parseYaml(yamlContents);
+                        master.setConfig(config);
+                    }
+
+                    master.run();
+                    reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+
+                    // Watch until the connection is lost.
+                    master.keepAlive();
+                    if (!master.isWatching()) {
+                        System.exit(0);
+                    }
+                    logger.warn("Lost connection to server.");
+
+                } catch (ConnectException e) {
+                    if (master == null) {
+                        logger.warn("Failed to connect to server.");
+                        logger.debug(e);
+                        System.exit(1);
+                    }
+                    logger.debug(e);
+                } catch (ConnectionLost | SocketException e) {
+                    if (master == null || !reconnect) {
+                        logger.warn(e);
+                        System.exit(1);
+                    }
+                    logger.warn("Lost connection to server.");
+                    logger.debug(e);
+                } catch (Exception e) {
+                    logger.warn(e);
+                    System.exit(1);
+                }
+                if (!reconnect) {
+                    System.exit(1);
+                }
+
+                // Back off, so a server that is down is not hammered.
+                logger.info("Reconnecting in " + reconnectDelay / 1000 + " seconds.");
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
             }
         } catch (Exception e) {
             logger.warn(e);
@@ -1,10 +1,18 @@
 package com.magento.devsync;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
+import com.magento.devsync.communications.BlobStore;
+import com.magento.devsync.communications.FingerprintCache;
 import com.magento.devsync.communications.Logger;
+import com.magento.devsync.communications.SyncTreeWalker;
+import com.magento.devsync.filewatcher.FileWatcher;
+import com.magento.devsync.filewatcher.PollingBackend;
+import com.magento.devsync.server.SelectorServer;
 import com.magento.devsync.server.ServerConnection;
 
 public class DevsyncServerMain {
@@ -18,6 +26,11 @@ public class DevsyncServerMain {
         boolean quietMode = false;
         boolean debugMode = false;
         boolean verboseMode = false;
+        boolean selectorMode = false;
+        boolean cacheFingerprints = true;
+        String blobStoreDir = null;
+        BlobStore.Link blobLink = BlobStore.Link.COPY;
+        int workerCount = SelectorServer.DEFAULT_WORKERS;
         
         int arg = 0;
         while (arg < args.length) {
@@ -27,6 +40,37 @@ public class DevsyncServerMain {
             } else if (arg + 2 <= args.length && args[arg].equals("--template")) {
                 templateDir = args[arg + 1];
                 arg += 2;
+            } else if (args[arg].equals("--nio")) {
+                selectorMode = true;
+                arg++;
+            } else if (arg + 2 <= args.length && args[arg].equals("--workers")) {
+                workerCount = Integer.parseInt(args[arg + 1]);
+                arg += 2;
+            } else if (arg + 2 <= args.length && args[arg].equals("--blob-store")) {
+                blobStoreDir = args[arg + 1];
+                arg += 2;
+            } else if (arg + 2 <= args.length && args[arg].equals("--blob-link") && BlobStore.Link.byName(args[arg + 1]) != null) {
+                blobLink = BlobStore.Link.byName(args[arg + 1]);
+                arg += 2;
+            } else if (args[arg].equals("--no-fingerprint-cache")) {
+                cacheFingerprints = false;
+                arg++;
+            } else if (arg + 2 <= args.length && args[arg].equals("--hash-threads")) {
+                SyncTreeWalker.setParallelism(Integer.parseInt(args[arg + 1]));
+                arg += 2;
+            } else if (args[arg].equals("--spinning-disk")) {
+                // Parallel reads only make the disk seek.
+                SyncTreeWalker.setParallelism(SyncTreeWalker.SPINNING_DISK_PARALLELISM);
+                arg++;
+            } else if (arg + 2 <= args.length && args[arg].equals("--watch-quiet")) {
+                FileWatcher.setQuietMillis(Long.parseLong(args[arg + 1]));
+                arg += 2;
+            } else if (arg + 2 <= args.length && args[arg].equals("--watch-max-delay")) {
+                FileWatcher.setMaxDelayMillis(Long.parseLong(args[arg + 1]));
+                arg += 2;
+            } else if (arg + 2 <= args.length && args[arg].equals("--poll-max-interval")) {
+                PollingBackend.setMaxIntervalMillis(Long.parseLong(args[arg + 1]));
+                arg += 2;
             } else if (args[arg].equals("--quiet")) {
                 quietMode = true;
                 arg++;
@@ -37,7 +81,7 @@ public class DevsyncServerMain {
                 verboseMode = true;
                 arg++;
             } else {
-                System.err.println("Usage: [ --port <port> ] [ --template <dir> ]");
+                System.err.println("Usage: [ --port <port> ] [ --template <dir> ] [ --nio [ --workers <count> ] ] [ --no-fingerprint-cache ] [ --hash-threads <count> | --spinning-disk ] [ --watch-quiet <millis> ] [ --watch-max-delay <millis> ] [ --poll-max-interval <millis> ] [ --blob-store <dir> [ --blob-link hardlink|reflink|copy ] ]");
                 for (int i = 0; i < args.length; i++) {
                     System.err.println("  " + i + " " + args[i]);
                 }
@@ -47,6 +91,12 @@ public class DevsyncServerMain {
         
         logger = new Logger("S", quietMode, debugMode, verboseMode);
         logger.info("DevSync server started.");
+        if (cacheFingerprints) {
+            FingerprintCache.open(new File(System.getProperty("user.home"), ".devsync/server-fingerprints"), logger);
+        }
+        if (blobStoreDir != null) {
+            BlobStore.open(new File(blobStoreDir), blobLink, logger);
+        }
         
         if (port == null) {
             port = System.getenv("DEVSYNC_PORT");
@@ -62,13 +112,21 @@ public class DevsyncServerMain {
         int portNumber = Integer.parseInt(port);
 
         logger.info("Server listening on port " + portNumber);
-        try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
+        // Accepted sockets are channels so file contents can be sent with transferTo().
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            serverSocket.bind(new InetSocketAddress(portNumber));
+            if (selectorMode) {
+                // One thread services all the sockets.
+                logger.infoVerbose("Using selector with " + workerCount + " worker threads");
+                new SelectorServer(serverSocket, workerCount, logger, templateDir).run();
+                return;
+            }
             while (true) {
-                Socket clientSocket = serverSocket.accept();
+                SocketChannel clientSocket = serverSocket.accept();
                 logger.infoVerbose("Accepted client connection request");
 
                 // Spawn a new thread per socket connection.
-                ServerConnection s = new ServerConnection(clientSocket, logger, templateDir);
+                ServerConnection s = new ServerConnection(clientSocket.socket(), logger, templateDir);
                 Thread serverThread = new Thread(s, "Server-Socket");
                 serverThread.setDaemon(true);
                 serverThread.start();
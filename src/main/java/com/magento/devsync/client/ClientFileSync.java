@@ -10,8 +10,9 @@ import com.magento.devsync.config.YamlFile;
 
 /**
  * This goes through the various stages of the client. (1) Copy files from
- * client to server, (2) Tell server to send updates from server to client, (3)
- * After server has finished, start watching the local file system
+ * client to server, while (2) the server sends its updates back, (3) After
+ * both have finished, start watching the local file system. Trees synced in
+ * both directions are copied to the server before the server walks them.
  */
 public class ClientFileSync {
 
@@ -31,28 +32,61 @@ public class ClientFileSync {
 
     public void run() throws ConnectionLost {
 
-        // Step one, do a client side sync files to server.
-        logger.infoVerbose("* Starting client->server sync");
+        // Tell server it can start on the trees only it syncs, so both
+        // directions are walked at once.
+        logger.infoVerbose("* Starting server->client sync");
+        try {
+            requestor.initialSync();
+        } catch (IOException e) {
+            throw new ConnectionLost(e);
+        }
 
+        // Meanwhile do a client side sync files to server, starting with the
+        // trees the server is waiting for.
+        logger.infoVerbose("* Starting client->server sync");
         SyncTreeWalker walker = new SyncTreeWalker(requestor, config, pathResolver, logger);
-        walker.clientToServerWalk();
+        walker.clientToServerWalk(true);
+        pushComplete();
+        walker.clientToServerWalk(false);
         logger.infoVerbose("  Scanned " + walker.getSyncFileCount() + " local files.");
 
-        // Step two, tell server it can start its sync now
+        awaitServerSync();
+    }
+
+    /**
+     * Ask the server to sync its changes to us (having sent ours), returning
+     * once it has.
+     */
+    public void serverSync() throws ConnectionLost {
         logger.infoVerbose("* Starting server->client sync");
         try {
             requestor.initialSync();
         } catch (IOException e) {
-            logger.warn(e);
-            System.exit(1); // TODO: System.exit(1) used to exit after fault.
+            throw new ConnectionLost(e);
         }
+        pushComplete();
+        awaitServerSync();
+    }
+
+    private void pushComplete() throws ConnectionLost {
+        try {
+            requestor.pushComplete();
+        } catch (IOException e) {
+            throw new ConnectionLost(e);
+        }
+    }
+
+    private void awaitServerSync() throws ConnectionLost {
 
         // Make sure we don't exit (which would move us on to phase 3, watching
         // the file system) until the server tells us that it has finished.
         synchronized (lock) {
             while (!serverSyncComplete) {
+                if (requestor.isClosed()) {
+                    throw new ConnectionLost(new RuntimeException("Connection lost during server sync."));
+                }
                 try {
-                    lock.wait();
+                    lock.wait(1000);
                 } catch (InterruptedException e) {
                     // Should not happen
                 }
@@ -2,9 +2,17 @@ package com.magento.devsync.client;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.magento.devsync.communications.Channel;
 import com.magento.devsync.communications.ConnectionLost;
+import com.magento.devsync.communications.FrameCodecs;
 import com.magento.devsync.communications.Logger;
 import com.magento.devsync.communications.ProtocolSpec;
 import com.magento.devsync.communications.Requestor;
@@ -16,6 +24,17 @@ import com.magento.devsync.filewatcher.ModifiedFileHistory;
  */
 public class ClientMaster {
 
+    /**
+     * How often the server is pinged while watching.
+     */
+    private static final long PING_INTERVAL_MILLIS = 10 * 1000;
+
+    /**
+     * How long the server has to answer a ping before the connection is
+     * taken to be dead.
+     */
+    private static final long PING_TIMEOUT_MILLIS = 60 * 1000;
+
     private Requestor requestor;
     private YamlFile config;
     private ClientPathResolver clientPathResolver;
@@ -23,6 +42,9 @@ public class ClientMaster {
     private ClientFileWatcher fileWatcher;
     private Logger logger;
     private ModifiedFileHistory modifiedFileHistory;
+    private String sessionToken;
+    private boolean resumed = false;
+    private Thread watcherThread;
 
     public ClientMaster(Channel channel, Logger logger, ModifiedFileHistory modifiedFileHistory) {
 
@@ -31,13 +53,37 @@ public class ClientMaster {
         requestor = new Requestor(channel, logger);
         clientPathResolver = new ClientPathResolver();
     }
+
+    /**
+     * Send large files to the server in parallel over these stripe channels.
+     */
+    public void setStripes(List<Requestor> stripes) {
+        requestor.setStripes(stripes);
+    }
+
+    /**
+     * Carry on over a new connection after the last one was lost. The file
+     * watcher keeps running meanwhile, queueing the changes it sees until
+     * run() syncs them.
+     */
+    public void reconnect(Channel channel, List<Requestor> stripes) {
+        requestor = new Requestor(channel, logger);
+        requestor.setStripes(stripes);
+        clientSync = new ClientFileSync(requestor, config, clientPathResolver, logger);
+    }
     
-    public void preConfigHandshake(boolean forceInitialization) throws ConnectionLost {
+    public void preConfigHandshake(boolean forceInitialization, boolean compress, List<String> hashes, boolean paranoid) throws ConnectionLost {
         
         // Send the protocol version (which will cause server to exit if its wrong).
         logger.debug("Checking protocol compatibility");
         try {
-            if (!requestor.checkProtocolVersion(ProtocolSpec.PROTOCOL_VERSION)) {
+            // Until an initial sync has completed there is nothing to
+            // resume, so each connection starts a new session.
+            if (watcherThread == null) {
+                sessionToken = UUID.randomUUID().toString();
+            }
+            List<String> codecs = compress ? FrameCodecs.names() : new ArrayList<String>();
+            if (!requestor.checkProtocolVersion(ProtocolSpec.PROTOCOL_VERSION, codecs, hashes, paranoid, sessionToken)) {
                 System.out.println("Incompatible version of client and server code");
                 System.exit(1);
             }
@@ -45,9 +91,10 @@ public class ClientMaster {
             e.printStackTrace();
             System.exit(1); // TODO: System.exit(1) used to exit after fault.
         }
+        resumed = requestor.isSessionResumed();
         
         // If current directory empty, do initialization
-        if (forceInitialization || new File(".").listFiles().length == 0) {
+        if (!resumed && (forceInitialization || new File(".").listFiles().length == 0)) {
             logger.info("Performing new project initialization.");
             try {
                 requestor.initializeProject();
@@ -67,7 +114,9 @@ public class ClientMaster {
     /**
      * Main execution of client - listens for requests from the server
      * which can come at any time, plus goes through the phases of file
-     * syncing.
+     * syncing. Returns once the initial sync is complete, leaving the file
+     * watcher running on its own thread (started by the first call), as it
+     * carries on across connections.
      * @throws ConnectionLost 
      */
     public void run() throws ConnectionLost {
@@ -84,14 +133,76 @@ public class ClientMaster {
             System.exit(1); // TODO: System.exit(1) used to exit after fault.
         }
 
+        if (resumed) {
+            // The server kept our session, so both ends only need to sync
+            // the changes queued while disconnected.
+            logger.info("Resumed session, syncing changes made while disconnected.");
+            fileWatcher.resume(requestor);
+            clientSync.serverSync();
+            return;
+        }
+
         // Perform the synchronization phase (client -> server and server -> client).
         // Returns only when both directions of initial file sync are complete.
         logger.info("Performing pre-watch file system sync.");
         clientSync.run();
+        if (watcherThread != null) {
+            // Reconnected to a server that had lost our session. Anything
+            // changed during the sync was queued.
+            fileWatcher.resume(requestor);
+            return;
+        }
 
         // Watch file system and send to server.
         logger.info("Watching file system for updates.");
-        fileWatcher.run();
+        watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fileWatcher.run();
+                } catch (ConnectionLost e) {
+                    logger.warn(e);
+                }
+            }
+        }, "Client-Watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    /**
+     * Returns true while the file watcher is running.
+     */
+    public boolean isWatching() {
+        return watcherThread != null && watcherThread.isAlive();
+    }
+
+    /**
+     * Ping the server every few seconds, returning once the connection is
+     * lost or the file watcher stops. If the server stops answering (such as
+     * when the network has gone without the socket being closed) the
+     * connection is closed.
+     */
+    public void keepAlive() {
+        long nextPing = System.currentTimeMillis() + PING_INTERVAL_MILLIS;
+        try {
+            while (!requestor.isClosed() && isWatching()) {
+                if (System.currentTimeMillis() < nextPing) {
+                    Thread.sleep(1000);
+                    continue;
+                }
+                Future<Boolean> pong = requestor.pingAsync();
+                try {
+                    pong.get(PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    logger.warn("Server stopped responding.");
+                    requestor.close();
+                    return;
+                }
+                nextPing = System.currentTimeMillis() + PING_INTERVAL_MILLIS;
+            }
+        } catch (InterruptedException | ExecutionException | IOException | ConnectionLost e) {
+            logger.debug(e);
+        }
     }
 
     /**
@@ -0,0 +1,241 @@
+package com.magento.devsync.communications;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Content addressed store of files received, shared by all the projects
+ * synced to the server. When the other endpoint fingerprints a file we do
+ * not have, a blob with the same digest is linked or copied into place
+ * rather than asking for the file to be sent, so a package already pushed
+ * by one developer does not have to be sent again for the next.
+ * <p>
+ * Blobs are kept in directories named after the hash algorithm, named by
+ * the hex digest (with ".x" added for executable files). Files received
+ * are added in the background. As blobs are shared between projects (and
+ * so users), the store is only used with hashes long enough that two
+ * different files will not have the same digest by accident.
+ */
+public class BlobStore {
+
+    /**
+     * Shortest digest trusted to identify the contents of a file.
+     */
+    public static final int MIN_DIGEST_LENGTH = 32;
+
+    /**
+     * How blobs are turned into files and files into blobs.
+     */
+    public static enum Link {
+        /**
+         * Files share the blob's inode, so take no extra disk space, but
+         * must only ever be replaced, not modified in place. Modification
+         * times are not set, as they would change every copy.
+         */
+        HARDLINK,
+
+        /**
+         * Copy on write clones (cp --reflink), falling back to a copy where
+         * the file system does not support them.
+         */
+        REFLINK,
+
+        /**
+         * Plain copies.
+         */
+        COPY;
+
+        public static Link byName(String name) {
+            for (Link link : values()) {
+                if (link.name().equalsIgnoreCase(name)) {
+                    return link;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static volatile BlobStore instance;
+
+    private File dir;
+    private Link link;
+    private Logger logger;
+    private ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Blob-Store");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private BlobStore(File dir, Link link, Logger logger) {
+        this.dir = dir;
+        this.link = link;
+        this.logger = logger;
+    }
+
+    /**
+     * Use (creating if need be) the blob store in the specified directory.
+     */
+    public static void open(File dir, Link link, Logger logger) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.warn("Unable to create blob store " + dir);
+            return;
+        }
+        logger.debug("Blob store " + dir + " using " + link.name().toLowerCase());
+        instance = new BlobStore(dir, link, logger);
+    }
+
+    /**
+     * The store in use, or null if there is none.
+     */
+    public static BlobStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns true if the file is hard linked to a blob (or anything else),
+     * so must be replaced rather than modified in place.
+     */
+    public static boolean isShared(File file) {
+        if (instance == null || instance.link != Link.HARDLINK) {
+            return false;
+        }
+        try {
+            return (Integer) Files.getAttribute(file.toPath(), "unix:nlink") > 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the store can be used with the hash algorithm.
+     */
+    public static boolean canUse(FileHash hash) {
+        return hash.getLength() >= MIN_DIGEST_LENGTH;
+    }
+
+    private File blobFor(FileHash hash, byte[] digest, boolean canExecute) {
+        String hex = DatatypeConverter.printHexBinary(digest).toLowerCase();
+        return new File(new File(new File(dir, hash.getName()), hex.substring(0, 2)), hex + (canExecute ? ".x" : ""));
+    }
+
+    /**
+     * Create the file from a blob with the specified fingerprint, if there
+     * is one. The file is built alongside the target then moved into place.
+     * Returns false if there is no such blob or it could not be used.
+     */
+    public boolean materialize(FileHash hash, byte[] digest, boolean canExecute, long modifiedTime, File target) {
+        if (!canUse(hash)) {
+            return false;
+        }
+        File blob = blobFor(hash, digest, canExecute);
+        if (!blob.isFile()) {
+            return false;
+        }
+        // A hard linked blob could have been modified in place.
+        if (!Arrays.equals(PathResolver.fingerprint(blob, hash).getDigest(), digest)) {
+            logger.warn("Blob " + blob + " does not match its digest, removing it");
+            blob.delete();
+            return false;
+        }
+        File tempFile = PathResolver.tempFileFor(target);
+        try {
+            Files.deleteIfExists(tempFile.toPath());
+            copy(blob, tempFile);
+            if (link != Link.HARDLINK) {
+                tempFile.setExecutable(canExecute);
+                PathResolver.setModifiedTime(tempFile, modifiedTime);
+            }
+            move(tempFile, target);
+            logger.debugVerbose("Blob store: created " + target + " from " + blob);
+            return true;
+        } catch (IOException e) {
+            logger.debug(e);
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Add a file just received to the store, in the background. The file is
+     * copied (or linked) first then the copy hashed, so the blob matches its
+     * name even if the file changes meanwhile.
+     */
+    public void add(final File file, final FileHash hash) {
+        if (!canUse(hash)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File tempFile = null;
+                try {
+                    // Unique, as other servers may share the store.
+                    tempFile = Files.createTempFile(dir.toPath(), PathResolver.TEMP_FILE_PREFIX, ".tmp").toFile();
+                    tempFile.delete();
+                    copy(file, tempFile);
+                    Fingerprint fingerprint = PathResolver.fingerprint(tempFile, hash);
+                    FingerprintCache.invalidate(tempFile);
+                    File blob = blobFor(hash, fingerprint.getDigest(), fingerprint.canExecute());
+                    if (blob.exists()) {
+                        tempFile.delete();
+                        return;
+                    }
+                    blob.getParentFile().mkdirs();
+                    move(tempFile, blob);
+                    logger.debugVerbose("Blob store: added " + blob);
+                } catch (IOException | RuntimeException e) {
+                    // Most likely the file was replaced or deleted already.
+                    logger.debug(e);
+                    if (tempFile != null) {
+                        tempFile.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    private void copy(File from, File to) throws IOException {
+        switch (link) {
+        case HARDLINK:
+            Files.createLink(to.toPath(), from.toPath());
+            return;
+
+        case REFLINK:
+            try {
+                Process cp = new ProcessBuilder("cp", "--reflink=auto", "-p", from.getPath(), to.getPath()).redirectErrorStream(true).start();
+                if (cp.waitFor() == 0) {
+                    return;
+                }
+            } catch (IOException | InterruptedException e) {
+                logger.debug(e);
+            }
+            // Fall back to a plain copy.
+            Files.deleteIfExists(to.toPath());
+            break;
+
+        default:
+            break;
+        }
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.magento.devsync.communications;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reusable buffers for encoding and decoding messages, so sending and
+ * receiving thousands of small messages during a sync does not create a new
+ * buffer (and garbage) for each one. Buffers come in power of two sizes;
+ * buffers larger than the biggest size are allocated and dropped as before.
+ */
+public class BufferPool {
+
+    /**
+     * Smallest buffer handed out.
+     */
+    public static final int MIN_SIZE = 4 * 1024;
+
+    /**
+     * Largest buffer that is kept for reuse. Big enough for a file chunk
+     * plus its message header.
+     */
+    public static final int MAX_POOLED_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Rough limit on the memory held idle in the pool for each size.
+     */
+    private static final int MAX_IDLE_BYTES_PER_SIZE = 8 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int MAX_SHIFT = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE);
+
+    private static final ArrayBlockingQueue<ByteBuffer>[] pools = createPools();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayBlockingQueue<ByteBuffer>[] createPools() {
+        ArrayBlockingQueue<ByteBuffer>[] pools = new ArrayBlockingQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < pools.length; i++) {
+            int size = MIN_SIZE << i;
+            pools[i] = new ArrayBlockingQueue<>(Math.max(2, Math.min(64, MAX_IDLE_BYTES_PER_SIZE / size)));
+        }
+        return pools;
+    }
+
+    /**
+     * Get a cleared heap buffer with at least the requested capacity.
+     */
+    public static ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > MAX_POOLED_SIZE) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+        int index = poolIndex(minCapacity);
+        ByteBuffer buf = pools[index].poll();
+        if (buf == null) {
+            return ByteBuffer.allocate(MIN_SIZE << index);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Return a buffer from acquire() to the pool. The caller must not use
+     * it again.
+     */
+    public static void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (capacity < MIN_SIZE || capacity > MAX_POOLED_SIZE || Integer.bitCount(capacity) != 1 || !buf.hasArray()) {
+            return;
+        }
+        pools[Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT].offer(buf);
+    }
+
+    private static int poolIndex(int capacity) {
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+}
@@ -1,14 +1,78 @@
 package com.magento.devsync.communications;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * One of the logical connections multiplexed over the socket. Requests sent
+ * with request() are tagged with a new request id, which the other end copies
+ * into its response, so any number of requests can be outstanding and their
+ * responses can arrive in any order. Requests received from the other end are
+ * queued for receive(), or dispatched to a handler.
+ * <p>
+ * The queue is a bounded single-producer/single-consumer ring: the
+ * multiplexer is the only thread adding to it and there is only ever one
+ * thread taking from it, so neither takes a lock. When it is full the
+ * multiplexer stops reading the socket until there is room, which holds the
+ * sender back through TCP flow control instead of the queue growing without
+ * limit.
+ */
 public class Channel {
 
+    /**
+     * Processes messages received on a channel, for when messages are
+     * dispatched to a worker pool rather than collected with receive().
+     */
+    public static interface MessageHandler {
+        void handle(MessageReader msg);
+
+        /**
+         * Called once the socket has closed and every message received has
+         * been handled.
+         */
+        void closed();
+    }
+
+    /**
+     * The most messages processed in one go before letting other channels
+     * have a turn on the worker pool.
+     */
+    private static final int MAX_DISPATCH_BATCH = 16;
+
+    /**
+     * The most received requests queued on a channel. A requestor keeps no
+     * more than 64 requests outstanding on a channel, so the queue only fills
+     * when the receiving side is falling behind.
+     */
+    private static final int QUEUE_CAPACITY = 128;
+
     private int channelNumber;
     private ChannelMultiplexer multiplexer;
-    private List<MessageReader> responses = new ArrayList<>();
+    private SpscQueue<MessageReader> requests = new SpscQueue<>(QUEUE_CAPACITY);
+    private ConcurrentHashMap<Integer, CompletableFuture<MessageReader>> pendingResponses = new ConcurrentHashMap<>();
+    private AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean closed = false;
+    private volatile Thread waitingReceiver;
+    private volatile Thread waitingMultiplexer;
+    private AtomicReference<Runnable> spaceListener = new AtomicReference<>();
+    private MessageReader lastReceived;
+    private volatile Executor dispatcher;
+    private volatile MessageHandler handler;
+    private AtomicBoolean dispatching = new AtomicBoolean();
+    private Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
 
     public Channel(int channelNumber, ChannelMultiplexer multiplexer) {
         this.channelNumber = (byte)channelNumber;
@@ -16,6 +80,13 @@ public class Channel {
         multiplexer.register(channelNumber, this);
     }
 
+    /**
+     * The connection this channel is multiplexed over.
+     */
+    protected ChannelMultiplexer getMultiplexer() {
+        return multiplexer;
+    }
+
     /**
      * You send messages from the thread you are on.
      * @throws ConnectionLost 
@@ -26,29 +97,323 @@ public class Channel {
     }
 
     /**
-     * Responses
+     * Send a request, returning a future that completes with the response. The
+     * caller must release() the response once it has been decoded.
+     */
+    public Future<MessageReader> request(MessageWriter msg) throws IOException, ConnectionLost {
+        CompletableFuture<MessageReader> response = expectResponse(msg);
+        try {
+            multiplexer.send(channelNumber, msg);
+        } catch (IOException | ConnectionLost e) {
+            cancelResponse(msg);
+            throw e;
+        }
+        return response;
+    }
+
+    /**
+     * Send a request followed by a region of a file, with the file data going
+     * straight from disk to the socket where possible.
+     */
+    public Future<MessageReader> request(MessageWriter msg, FileChannel file, long position, int length) throws IOException, ConnectionLost {
+        CompletableFuture<MessageReader> response = expectResponse(msg);
+        try {
+            multiplexer.send(channelNumber, msg, file, position, length);
+        } catch (IOException | ConnectionLost e) {
+            cancelResponse(msg);
+            throw e;
+        }
+        return response;
+    }
+
+    /**
+     * Send the response to a request received on this channel.
+     */
+    public void respond(MessageReader request, MessageWriter response) throws IOException, ConnectionLost {
+        response.setRequestId(request.getRequestId(), true);
+        multiplexer.send(channelNumber, response);
+    }
+
+    /**
+     * Give the request a new id, and register the future its response
+     * will complete.
+     */
+    private CompletableFuture<MessageReader> expectResponse(MessageWriter msg) throws ConnectionLost {
+        int requestId;
+        do {
+            requestId = nextRequestId.incrementAndGet();
+        } while (requestId == 0);
+        msg.setRequestId(requestId, false);
+        CompletableFuture<MessageReader> response = new CompletableFuture<>();
+        pendingResponses.put(requestId, response);
+        // Checked after registering, so either this sees the close or the
+        // close sees (and fails) the response.
+        if (closed) {
+            pendingResponses.remove(requestId);
+            throw new ConnectionLost(new RuntimeException("Cannot send request on closed socket."));
+        }
+        return response;
+    }
+
+    private void cancelResponse(MessageWriter msg) {
+        pendingResponses.remove(msg.getRequestId());
+    }
+
+    /**
+     * Returns true once the socket has closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Shut down the connection the channel is multiplexed over, such as when
+     * the other end has stopped responding.
+     */
+    public void close() {
+        multiplexer.close();
+    }
+
+    /**
+     * Returns true if frames sent on this channel are being compressed.
+     */
+    public boolean isCompressing() {
+        return multiplexer.isCompressing();
+    }
+
+    /**
+     * Set the codec the multiplexer uses to compress outgoing frames.
+     */
+    public void setCodec(FrameCodec codec) {
+        multiplexer.setCodec(codec);
+    }
+
+    /**
+     * The algorithm both endpoints fingerprint files with.
+     */
+    public FileHash getFileHash() {
+        return multiplexer.getFileHash();
+    }
+
+    /**
+     * Set the file hash algorithm, once agreed with the other endpoint.
+     */
+    public void setFileHash(FileHash fileHash) {
+        multiplexer.setFileHash(fileHash);
+    }
+
+    /**
+     * True if files are always compared by fingerprint, rather than taken to
+     * match when their size and modification time do.
+     */
+    public boolean isParanoid() {
+        return multiplexer.isParanoid();
+    }
+
+    /**
+     * Set paranoid mode, once agreed with the other endpoint.
+     */
+    public void setParanoid(boolean paranoid) {
+        multiplexer.setParanoid(paranoid);
+    }
+
+    /**
+     * Requests. Each channel has a single thread receiving from it, so the
+     * previous message is finished with and its buffers are recycled (and
+     * any file contents it left unread are skipped).
      * @return
      * @throws ConnectionLost 
      */
-    synchronized public MessageReader receive() throws ConnectionLost {
-        while (responses.isEmpty()) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                // Ignore
+    public MessageReader receive() throws ConnectionLost {
+        if (lastReceived != null) {
+            lastReceived.release();
+            lastReceived = null;
+        }
+        MessageReader req;
+        while ((req = requests.poll()) == null) {
+            if (closed) {
+                // Messages queued before the socket closed are still wanted.
+                req = requests.poll();
+                if (req == null) {
+                    throw new ConnectionLost(new RuntimeException("Found socket closed when tried to read."));
+                }
+                break;
+            }
+            waitingReceiver = Thread.currentThread();
+            // Wake the multiplexer if it is waiting for us to be idle.
+            wake(waitingMultiplexer);
+            if (requests.isEmpty() && !closed) {
+                LockSupport.park(this);
             }
+            waitingReceiver = null;
         }
-        
-        MessageReader resp = responses.get(0);
-        if (resp == null) {
-            throw new ConnectionLost(new RuntimeException("Found socket closed when tried to read."));
+        spaceFreed();
+        lastReceived = req;
+        return req;
+    }
+
+    /**
+     * Wait (up to the timeout) for a thread to be blocked in receive(), or
+     * the handler to have finished dispatching, with nothing queued, so the
+     * next message added will be picked up straight away. Returns false if
+     * that did not happen in time. Only called by the multiplexer.
+     */
+    protected boolean awaitIdle(long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (!isIdle()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            waitingMultiplexer = Thread.currentThread();
+            if (!isIdle()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            waitingMultiplexer = null;
         }
-        responses.remove(0);
-        return resp;
+        return true;
     }
 
-    synchronized protected void addReceivedMessage(MessageReader msg) {
-        responses.add(msg);
-        notifyAll();
+    private boolean isIdle() {
+        return requests.isEmpty() && (handler == null ? waitingReceiver != null : !dispatching.get());
+    }
+
+    /**
+     * Called by the multiplexer with each message received on the channel.
+     * Responses complete the matching request; anything else is queued,
+     * waiting for room if the queue is full.
+     */
+    protected void addReceivedMessage(MessageReader msg) {
+        if (msg.isResponse()) {
+            completeResponse(msg);
+            return;
+        }
+        while (!requests.offer(msg)) {
+            waitingMultiplexer = Thread.currentThread();
+            if (requests.isFull()) {
+                LockSupport.park(this);
+            }
+            waitingMultiplexer = null;
+        }
+        messageAdded();
+    }
+
+    /**
+     * Like addReceivedMessage(), but for a multiplexer that must not block.
+     * Returns false if the queue is full, in which case the message was not
+     * added and whenSpace is run (on the receiving thread) once there is room
+     * to try again.
+     */
+    protected boolean offerReceivedMessage(MessageReader msg, Runnable whenSpace) {
+        if (msg.isResponse()) {
+            completeResponse(msg);
+            return true;
+        }
+        if (!requests.offer(msg)) {
+            spaceListener.set(whenSpace);
+            // Room may have been made before the listener was set.
+            if (!requests.offer(msg)) {
+                return false;
+            }
+            spaceListener.compareAndSet(whenSpace, null);
+        }
+        messageAdded();
+        return true;
+    }
+
+    /**
+     * Called by the multiplexer once the socket has been closed. Anything
+     * already queued is still received, after which receive() throws
+     * ConnectionLost.
+     */
+    protected void closed() {
+        closed = true;
+        for (Integer requestId : pendingResponses.keySet()) {
+            CompletableFuture<MessageReader> response = pendingResponses.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(new ConnectionLost(new RuntimeException("Found socket closed while waiting for response.")));
+            }
+        }
+        wake(waitingReceiver);
+        // Let the handler know, once it has finished with what is queued.
+        if (handler != null && dispatching.compareAndSet(false, true)) {
+            dispatcher.execute(dispatchTask);
+        }
+    }
+
+    private void completeResponse(MessageReader msg) {
+        CompletableFuture<MessageReader> response = pendingResponses.remove(msg.getRequestId());
+        if (response == null) {
+            System.err.println("Received response to unknown request " + msg.getRequestId() + " on channel " + channelNumber);
+            msg.release();
+        } else {
+            response.complete(msg);
+        }
+    }
+
+    private void messageAdded() {
+        wake(waitingReceiver);
+        if (handler != null && dispatching.compareAndSet(false, true)) {
+            dispatcher.execute(dispatchTask);
+        }
+    }
+
+    /**
+     * Called after taking a message off the queue, to let the multiplexer
+     * continue if it was waiting for room.
+     */
+    private void spaceFreed() {
+        wake(waitingMultiplexer);
+        Runnable listener = spaceListener.getAndSet(null);
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Instead of a thread calling receive(), have the handler process
+     * received messages on the executor. Messages are processed one at a
+     * time, in the order received.
+     */
+    public void dispatchTo(Executor executor, MessageHandler handler) {
+        this.dispatcher = executor;
+        this.handler = handler;
+    }
+
+    private void dispatch() {
+        for (int i = 0; i < MAX_DISPATCH_BATCH; i++) {
+            MessageReader msg = requests.poll();
+            if (msg == null) {
+                if (closed) {
+                    // Socket closed, leave dispatching set so nothing more is queued.
+                    handler.closed();
+                    return;
+                }
+                dispatching.set(false);
+                // Wake the multiplexer if it is waiting for us to be idle.
+                wake(waitingMultiplexer);
+                // A message added (or the socket closed) after the poll would
+                // not have scheduled another dispatch, as dispatching was
+                // still set.
+                if ((requests.isEmpty() && !closed) || !dispatching.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            spaceFreed();
+            try {
+                handler.handle(msg);
+            } finally {
+                msg.release();
+            }
+        }
+        // Give other channels a turn.
+        dispatcher.execute(dispatchTask);
     }
 }
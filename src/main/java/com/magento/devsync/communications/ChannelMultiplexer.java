@@ -1,10 +1,13 @@
 package com.magento.devsync.communications;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -13,25 +16,190 @@ import java.util.Map;
  * at any time and send it to the other end. This is achieved by having multiple
  * threads and multiplexing messages in different "channels" within the one socket.
  * Otherwise would need some kind of polling mechanism, which is less desirable.
+ * <p>
+ * Each frame starts with a channel number byte, a flags byte, a request id and
+ * the payload length. The low bits of the flags byte are the identifier of the
+ * codec the payload was compressed with (zero if not compressed), in which case
+ * the payload starts with the uncompressed length. If FLAG_BODY is set the payload
+ * starts with the length of the message, and the rest of the payload is file
+ * contents that the receiver can copy straight from the socket to disk. If
+ * FLAG_RESPONSE is set the frame is the response to the request with the same
+ * id, otherwise it is a new request.
+ * <p>
+ * Normally a thread per multiplexer reads from a blocking socket (see run()).
+ * A server handling many sockets can instead use a Selector, calling
+ * receiveAvailable() when the socket is readable.
+ * <p>
+ * Each channel only queues a limited number of requests. When a channel's
+ * queue is full the multiplexer stops reading the socket until the channel
+ * has caught up, so a fast sender is slowed down by TCP flow control. Note
+ * this also holds up the other channels, which is why the requestors limit
+ * how many requests they have outstanding.
  */
 public class ChannelMultiplexer implements Runnable {
 
+    /**
+     * Frame flag: the message is followed by a body of file contents.
+     */
+    private static final byte FLAG_BODY = (byte) 0x80;
+
+    /**
+     * Frame flag: the message is a response to an earlier request.
+     */
+    private static final byte FLAG_RESPONSE = 0x40;
+
+    /**
+     * Frame flags that hold the codec identifier.
+     */
+    private static final byte CODEC_MASK = 0x3f;
+
+    /**
+     * How long to wait for the receiving thread to be ready to copy file
+     * contents straight from the socket, before reading them into memory.
+     */
+    private static final long BODY_HANDOFF_MILLIS = 100;
+
+    /**
+     * File regions smaller than this are copied through the heap, as a
+     * separate transferTo() call costs more than it saves.
+     */
+    private static final int MIN_TRANSFER_LENGTH = 64 * 1024;
+
     private Socket socket;
+    private SocketChannel socketChannel;
     private InputStream input;
     private OutputStream output;
     private Map<Integer,Channel> channels = new HashMap<>();
     private Object writeLock = new Object();
+    private ByteBuffer frameHeader = ByteBuffer.allocate(2 + Integer.BYTES * 3);
+    private ByteBuffer receiveHeader = ByteBuffer.allocate(2 + Integer.BYTES * 2);
     private Object readLock = new Object();
+    private volatile FrameCodec codec;
+    private volatile FileHash fileHash = FileHashes.getDefault();
+    private volatile boolean paranoid = false;
+    private SocketChannel nonBlockingChannel;
+    private ByteBuffer receivePayload;
+    private int receiveChannelNumber;
+    private byte receiveFlags;
+    private int receiveRequestId;
+    private Channel pausedChannel;
+    private MessageReader pausedMessage;
+    private Runnable resumeListener;
+    private Runnable channelHasSpace = new Runnable() {
+        @Override
+        public void run() {
+            Runnable listener = resumeListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    };
 
     public ChannelMultiplexer(Socket socket) throws IOException {
-        this.input = socket.getInputStream();
-        this.output = socket.getOutputStream();
+        this.socket = socket;
+        // Only sockets opened as channels support sending file contents
+        // with transferTo().
+        this.socketChannel = socket.getChannel();
+        OutputStream out;
+        if (socketChannel != null) {
+            // Not the socket's own streams, which before Java 13 hold the
+            // channel's blocking lock while a read blocks, so a write from
+            // another thread would wait until something arrived.
+            this.input = new ChannelInput(socketChannel);
+            out = new ChannelOutput(socketChannel);
+            // File data is written separately from the frame header, so do not
+            // let Nagle's algorithm hold it back.
+            socket.setTcpNoDelay(true);
+        } else {
+            this.input = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+        // Buffered so the frame header and a small payload go out in one
+        // TCP segment, rather than the payload being held back by Nagle's
+        // algorithm waiting for the header to be acknowledged.
+        this.output = new BufferedOutputStream(out, 64 * 1024);
+    }
+
+    /**
+     * Constructor for a non-blocking socket serviced by a Selector. Frames
+     * are written to the supplied stream, which must wait for the socket to
+     * be writable rather than fail. File contents are always copied through
+     * memory in this mode.
+     */
+    public ChannelMultiplexer(SocketChannel socketChannel, OutputStream output) throws IOException {
+        this.socket = socketChannel.socket();
+        this.nonBlockingChannel = socketChannel;
+        this.output = new BufferedOutputStream(output, 64 * 1024);
+        socket.setTcpNoDelay(true);
     }
 
     public void register(int channelNumber, Channel channel) {
         channels.put(channelNumber, channel);
     }
 
+    /**
+     * For a non-blocking socket, set what to call (from any thread) once a
+     * channel that was full has room again. It should arrange for
+     * receiveAvailable() to be called, even if the socket is not readable.
+     */
+    public void setResumeListener(Runnable listener) {
+        this.resumeListener = listener;
+    }
+
+    /**
+     * Returns true if receiveAvailable() stopped reading because a channel
+     * queue is full. The caller should stop watching for the socket to be
+     * readable until the resume listener is called.
+     */
+    public boolean isReceivePaused() {
+        return pausedMessage != null;
+    }
+
+    /**
+     * Returns true if outgoing frames are being compressed.
+     */
+    public boolean isCompressing() {
+        return codec != null;
+    }
+
+    /**
+     * Set the codec used to compress outgoing frames (null to disable
+     * compression), once agreed with the other endpoint. Incoming frames are
+     * decompressed according to their header, whatever the setting.
+     */
+    public void setCodec(FrameCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * The algorithm both endpoints fingerprint files with.
+     */
+    public FileHash getFileHash() {
+        return fileHash;
+    }
+
+    /**
+     * Set the file hash algorithm, once agreed with the other endpoint.
+     */
+    public void setFileHash(FileHash fileHash) {
+        this.fileHash = fileHash;
+    }
+
+    /**
+     * True if files are always compared by fingerprint, rather than taken to
+     * match when their size and modification time do.
+     */
+    public boolean isParanoid() {
+        return paranoid;
+    }
+
+    /**
+     * Set paranoid mode, once agreed with the other endpoint.
+     */
+    public void setParanoid(boolean paranoid) {
+        this.paranoid = paranoid;
+    }
+
     /**
      * Send a message. Unlike receiving messages, the message to be sent is not
      * queued - it is done immediately.
@@ -41,15 +209,110 @@ public class ChannelMultiplexer implements Runnable {
         if (output == null) {
             throw new ConnectionLost(new RuntimeException("Cannot write to closed socket."));
         }
-        byte[] payload = msg.toByteArray();
-        ByteBuffer lenBuf = ByteBuffer.allocate(1 + Integer.BYTES);
-        lenBuf.put((byte)channelNumber);
-        lenBuf.putInt(payload.length);
+        ByteBuffer compressed = null;
+        try {
+            byte[] payload = msg.array();
+            int dataLength = msg.size();
+            byte flags = msg.isResponse() ? FLAG_RESPONSE : 0;
+            int originalLength = 0;
+
+            FrameCodec c = codec;
+            if (c != null && msg.isCompressible() && dataLength >= FrameCodecs.COMPRESSION_THRESHOLD) {
+                compressed = BufferPool.acquire(dataLength);
+                int compressedLength = c.compress(payload, 0, dataLength, compressed.array());
+                if (compressedLength >= 0 && compressedLength + Integer.BYTES < dataLength) {
+                    flags |= c.getId();
+                    originalLength = dataLength;
+                    payload = compressed.array();
+                    dataLength = compressedLength;
+                }
+            }
+
+            synchronized (writeLock) {
+                if (output == null) {
+                    // Closed while the frame was being compressed.
+                    throw new ConnectionLost(new RuntimeException("Cannot write to closed socket."));
+                }
+                frameHeader.clear();
+                frameHeader.put((byte)channelNumber);
+                frameHeader.put(flags);
+                frameHeader.putInt(msg.getRequestId());
+                if ((flags & CODEC_MASK) != 0) {
+                    frameHeader.putInt(Integer.BYTES + dataLength);
+                    frameHeader.putInt(originalLength);
+                } else {
+                    frameHeader.putInt(dataLength);
+                }
+                output.write(frameHeader.array(), 0, frameHeader.position());
+                output.write(payload, 0, dataLength);
+                output.flush();
+            }
+        } finally {
+            msg.release();
+            if (compressed != null) {
+                BufferPool.release(compressed);
+            }
+        }
+    }
+
+    /**
+     * Send a message whose payload ends with a region of a file. The file data
+     * goes straight from disk to the socket using FileChannel.transferTo()
+     * (sendfile), without being copied onto the heap. If the frame is to be
+     * compressed, or the region is small, it is read into memory and sent like
+     * any other message.
+     */
+    public void send(int channelNumber, MessageWriter msg, FileChannel file, long position, int length) throws IOException, ConnectionLost {
+        if (output == null) {
+            throw new ConnectionLost(new RuntimeException("Cannot write to closed socket."));
+        }
+        if (socketChannel == null || length < MIN_TRANSFER_LENGTH || (codec != null && msg.isCompressible())) {
+            try {
+                msg.putBytes(file, position, length);
+            } catch (IOException e) {
+                msg.release();
+                throw e;
+            }
+            send(channelNumber, msg);
+            return;
+        }
 
         synchronized (writeLock) {
-            output.write(lenBuf.array(), 0, lenBuf.position());
-            output.write(payload, 0, payload.length);
-            output.flush();
+            try {
+                if (output == null) {
+                    throw new ConnectionLost(new RuntimeException("Cannot write to closed socket."));
+                }
+                frameHeader.clear();
+                frameHeader.put((byte)channelNumber);
+                frameHeader.put(msg.isResponse() ? (byte) (FLAG_BODY | FLAG_RESPONSE) : FLAG_BODY);
+                frameHeader.putInt(msg.getRequestId());
+                frameHeader.putInt(Integer.BYTES + msg.size() + length);
+                frameHeader.putInt(msg.size());
+                output.write(frameHeader.array(), 0, frameHeader.position());
+                output.write(msg.array(), 0, msg.size());
+                output.flush();
+            } finally {
+                msg.release();
+            }
+
+            long remaining = length;
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, socketChannel);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            if (remaining > 0) {
+                // The file was truncated while being sent. The header promised
+                // more than there is, and anything sent to make up the length
+                // would be taken as file contents, so drop the connection. The
+                // other end discards the frame, and the file is synced again
+                // once reconnected.
+                close();
+                throw new ConnectionLost(new IOException("File was truncated while being sent"));
+            }
         }
     }
 
@@ -66,10 +329,100 @@ public class ChannelMultiplexer implements Runnable {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        disconnected();
+    }
 
-        // Put a 'null' in each channel message queue to indicate EOF.
+    /**
+     * Read whatever is available from a non-blocking socket, passing any
+     * complete frames to their channels. Returns false once the socket has
+     * been closed, in which case the caller should call disconnected() once
+     * it has released any threads waiting to write.
+     */
+    public boolean receiveAvailable() {
+        try {
+            if (pausedMessage != null) {
+                if (!pausedChannel.offerReceivedMessage(pausedMessage, channelHasSpace)) {
+                    return true;
+                }
+                pausedChannel = null;
+                pausedMessage = null;
+            }
+            while (true) {
+                if (receivePayload == null) {
+                    if (nonBlockingChannel.read(receiveHeader) < 0) {
+                        break;
+                    }
+                    if (receiveHeader.hasRemaining()) {
+                        return true;
+                    }
+                    receiveHeader.flip();
+                    receiveChannelNumber = receiveHeader.get();
+                    receiveFlags = receiveHeader.get();
+                    receiveRequestId = receiveHeader.getInt();
+                    int payloadLength = receiveHeader.getInt();
+                    receiveHeader.clear();
+                    receivePayload = BufferPool.acquire(payloadLength);
+                    receivePayload.limit(payloadLength);
+                }
+                if (receivePayload.hasRemaining() && nonBlockingChannel.read(receivePayload) < 0) {
+                    break;
+                }
+                if (receivePayload.hasRemaining()) {
+                    return true;
+                }
+                receivePayload.flip();
+                ByteBuffer payload = receivePayload;
+                receivePayload = null;
+                MessageReader msg = decode(receiveFlags, receiveRequestId, payload);
+                if (msg == null) {
+                    break;
+                }
+                Channel channel = channels.get(receiveChannelNumber);
+                if (!channel.offerReceivedMessage(msg, channelHasSpace)) {
+                    // Hold on to it until the channel has room.
+                    pausedChannel = channel;
+                    pausedMessage = msg;
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            // Treat the same as the socket being closed.
+        }
+        return false;
+    }
+
+    /**
+     * Shut the socket down, for when the other end has stopped responding.
+     * The receiving side then sees the socket close as usual.
+     */
+    public void close() {
+        Socket s = socket;
+        if (s == null) {
+            return;
+        }
+        try {
+            s.shutdownInput();
+        } catch (IOException e) {
+            // Already closed.
+        }
+        try {
+            s.shutdownOutput();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    /**
+     * Tell each channel the socket has gone, then clean up.
+     */
+    public void disconnected() {
+        if (pausedMessage != null) {
+            pausedMessage.release();
+            pausedMessage = null;
+            pausedChannel = null;
+        }
         for (Channel channel : channels.values()) {
-            channel.addReceivedMessage(null);
+            channel.closed();
         }
 
         // Clean up resources.
@@ -85,6 +438,7 @@ public class ChannelMultiplexer implements Runnable {
             } catch (IOException e) {
                 // Ignore any problems closing the sockets.
             }
+            output = null;
         }
         try {
             if (input != null) {
@@ -100,7 +454,6 @@ public class ChannelMultiplexer implements Runnable {
         } catch (IOException e) {
             // Ignore any problems closing the sockets.
         }
-        output = null;
         input = null;
         socket = null;
     }
@@ -113,26 +466,131 @@ public class ChannelMultiplexer implements Runnable {
 
         // Read message length.
         synchronized (readLock) {
-            ByteBuffer payloadHeader = ByteBuffer.allocate(1 + Integer.BYTES);
-            if (!readBytes(payloadHeader, 1 + Integer.BYTES)) {
+            if (!readBytes(receiveHeader, 2 + Integer.BYTES * 2)) {
                 return false;
             }
-            payloadHeader.flip();
-            int channelNumber = payloadHeader.get();
-            int payloadLength = payloadHeader.getInt();
+            receiveHeader.flip();
+            int channelNumber = receiveHeader.get();
+            byte flags = receiveHeader.get();
+            int requestId = receiveHeader.getInt();
+            int payloadLength = receiveHeader.getInt();
+            Channel channel = channels.get(channelNumber);
+
+            if ((flags & FLAG_BODY) != 0) {
+                return receiveWithBody(channel, flags, requestId, payloadLength);
+            }
 
             // Read payload body, now we know the length.
-            ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            ByteBuffer payload = BufferPool.acquire(payloadLength);
             if (!readBytes(payload, payloadLength)) {
                 return false;
             }
             payload.flip();
 
-            //			logger.log("In multiplexer - got message for channel " + channelNumber);
-            MessageReader msg = new MessageReader(payload);
-            channels.get(channelNumber).addReceivedMessage(msg);
+            MessageReader msg = decode(flags, requestId, payload);
+            if (msg == null) {
+                closeEverything();
+                return false;
+            }
+            channel.addReceivedMessage(msg);
+            return true;
+        }
+    }
+
+    /**
+     * Turn a frame that has been read into memory into a message, returning
+     * null if it cannot be decoded.
+     */
+    private MessageReader decode(byte flags, int requestId, ByteBuffer payload) {
+        boolean response = (flags & FLAG_RESPONSE) != 0;
+        if ((flags & FLAG_BODY) != 0) {
+            // Split off the message, leaving the body in the frame buffer.
+            int messageLength = payload.getInt();
+            ByteBuffer message = BufferPool.acquire(messageLength);
+            message.put(payload.array(), payload.arrayOffset() + payload.position(), messageLength);
+            message.flip();
+            payload.position(payload.position() + messageLength);
+            MessageReader msg = new MessageReader(message, payload);
+            msg.setRequestId(requestId, response);
+            return msg;
+        }
+
+        if ((flags & CODEC_MASK) != 0) {
+            payload = decompress((byte) (flags & CODEC_MASK), payload);
+            if (payload == null) {
+                return null;
+            }
+        }
+
+        //			logger.log("In multiplexer - got message for channel " + channelNumber);
+        MessageReader msg = new MessageReader(payload);
+        msg.setRequestId(requestId, response);
+        return msg;
+    }
+
+    /**
+     * Receive a message followed by file contents. Once the receiving thread
+     * is idle, it is handed the socket to copy the contents straight to disk,
+     * and the next frame is not read until it is done. If it does not become
+     * idle soon (it might be blocked sending, waiting for the other end to
+     * read from its socket) the contents are read into memory as usual so the
+     * socket keeps draining.
+     */
+    private boolean receiveWithBody(Channel channel, byte flags, int requestId, int payloadLength) {
+        if (!readBytes(receiveHeader, Integer.BYTES)) {
+            return false;
+        }
+        receiveHeader.flip();
+        int messageLength = receiveHeader.getInt();
+        ByteBuffer payload = BufferPool.acquire(messageLength);
+        if (!readBytes(payload, messageLength)) {
+            return false;
+        }
+        payload.flip();
+        int bodyLength = payloadLength - Integer.BYTES - messageLength;
+        boolean response = (flags & FLAG_RESPONSE) != 0;
+
+        if (socketChannel != null && !response && channel.awaitIdle(BODY_HANDOFF_MILLIS)) {
+            MessageReader msg = new MessageReader(payload, socketChannel, bodyLength);
+            msg.setRequestId(requestId, response);
+            channel.addReceivedMessage(msg);
+            msg.awaitBodyConsumed();
             return true;
         }
+
+        ByteBuffer body = BufferPool.acquire(bodyLength);
+        if (!readBytes(body, bodyLength)) {
+            return false;
+        }
+        body.flip();
+        MessageReader msg = new MessageReader(payload, body);
+        msg.setRequestId(requestId, response);
+        channel.addReceivedMessage(msg);
+        return true;
+    }
+
+    /**
+     * Expand a compressed frame payload, returning null if it cannot be decoded.
+     */
+    private ByteBuffer decompress(byte codecId, ByteBuffer payload) {
+        FrameCodec c = FrameCodecs.byId(codecId);
+        if (c == null) {
+            System.err.println("Received frame compressed with unknown codec " + codecId);
+            return null;
+        }
+        int originalLength = payload.getInt();
+        ByteBuffer original = BufferPool.acquire(originalLength);
+        try {
+            c.decompress(payload, original.array(), originalLength);
+            original.limit(originalLength);
+            return original;
+        } catch (IOException e) {
+            e.printStackTrace();
+            BufferPool.release(original);
+            return null;
+        } finally {
+            BufferPool.release(payload);
+        }
     }
 
     /**
@@ -162,4 +620,52 @@ public class ChannelMultiplexer implements Runnable {
         }
         return true;
     }
+
+    /**
+     * Reads straight from a blocking socket channel.
+     */
+    private static class ChannelInput extends InputStream {
+
+        private final SocketChannel channel;
+
+        private ChannelInput(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    /**
+     * Writes straight to a blocking socket channel.
+     */
+    private static class ChannelOutput extends OutputStream {
+
+        private final SocketChannel channel;
+
+        private ChannelOutput(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package com.magento.devsync.communications;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frame compression using java.util.zip deflate, tuned for speed rather
+ * than the best compression ratio. Each thread gets its own deflater and
+ * inflater so connections do not contend for a lock.
+ */
+public class DeflateCodec implements FrameCodec {
+
+    public static final String NAME = "deflate";
+
+    private ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte getId() {
+        return 1;
+    }
+
+    @Override
+    public int compress(byte[] data, int offset, int length, byte[] output) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        // If it does not fit in the original size, it is not worth it.
+        int outLength = 0;
+        while (!deflater.finished()) {
+            if (outLength == length) {
+                return -1;
+            }
+            outLength += deflater.deflate(output, outLength, length - outLength);
+        }
+        return outLength;
+    }
+
+    @Override
+    public void decompress(ByteBuffer data, byte[] output, int length) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        try {
+            int outLength = 0;
+            while (outLength < length) {
+                int n = inflater.inflate(output, outLength, length - outLength);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+                    throw new IOException("Compressed frame is shorter than expected");
+                }
+                outLength += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.magento.devsync.communications;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Digest of a directory tree, formed from the names and fingerprints of the
+ * files in the directory and the digests of its subdirectories (a Merkle
+ * tree). Directories with the same digest on both endpoints have the same
+ * contents, so the initial sync can skip them without sending a fingerprint
+ * per file. Both endpoints must skip the same paths, and use the same
+ * FileHash, for digests to agree.
+ * <p>
+ * Files are included either by fingerprint, or (so nothing needs hashing)
+ * by size and modification time. Both endpoints must include them the same
+ * way. As writes preserve modification times, a tree already in sync has
+ * the same digest either way. Files modified too recently for their time to
+ * be relied on are always included by fingerprint, as two different files
+ * of the same size would otherwise look the same.
+ */
+public class DirectoryDigest {
+
+    private static final byte DIRECTORY = 'd';
+    private static final byte FILE = 'f';
+    private static final byte EXECUTABLE_FILE = 'x';
+
+    private FileHash hash;
+    private TreeMap<String, byte[]> entries = new TreeMap<>();
+
+    public DirectoryDigest(FileHash hash) {
+        this.hash = hash;
+    }
+
+    public void addFile(String name, Fingerprint fingerprint) {
+        entries.put(name, entry(fingerprint.canExecute() ? EXECUTABLE_FILE : FILE, fingerprint.getDigest()));
+    }
+
+    /**
+     * Add a file by size and modification time rather than contents. The
+     * time must be known (not PathResolver.UNKNOWN_MODIFIED_TIME).
+     */
+    public void addFile(String name, boolean canExecute, long size, long modifiedTime) {
+        byte[] metadata = ByteBuffer.allocate(2 * Long.BYTES).putLong(size).putLong(modifiedTime).array();
+        entries.put(name, entry(canExecute ? EXECUTABLE_FILE : FILE, metadata));
+    }
+
+    public void addDirectory(String name, byte[] digest) {
+        entries.put(name, entry(DIRECTORY, digest));
+    }
+
+    private static byte[] entry(byte type, byte[] digest) {
+        byte[] entry = new byte[digest.length + 1];
+        entry[0] = type;
+        System.arraycopy(digest, 0, entry, 1, digest.length);
+        return entry;
+    }
+
+    /**
+     * The digest of the entries added so far. Entries are combined in name
+     * order, so it does not matter what order they were listed in.
+     */
+    public byte[] getDigest() {
+        FileHash.Hasher hasher = hash.newHasher();
+        byte[] separator = new byte[1];
+        for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+            byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+            hasher.update(name, 0, name.length);
+            hasher.update(separator, 0, 1);
+            hasher.update(e.getValue(), 0, e.getValue().length);
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Work out the digest of the local copy of a directory, or null if there
+     * is no such directory. The digest of every directory below it is added
+     * to the cache (keyed by client path) along the way, so later requests
+     * for subdirectories do not walk the tree again. Files are hashed only
+     * if byContents is set.
+     */
+    public static byte[] compute(String path, List<String> exclude, PathResolver pathResolver, FileHash hash, boolean byContents, Map<String, byte[]> cache) {
+        File dir = pathResolver.clientPathToFile(path);
+        String[] names = dir.isDirectory() ? dir.list() : null;
+        if (names == null) {
+            return null;
+        }
+        DirectoryDigest digest = new DirectoryDigest(hash);
+        for (String name : names) {
+            String childPath = path + "/" + name;
+            if (exclude.contains(childPath) || PathResolver.isTempFile(name)) {
+                continue;
+            }
+            File child = pathResolver.clientPathToFile(childPath);
+            if (child.isDirectory()) {
+                byte[] childDigest = compute(childPath, exclude, pathResolver, hash, byContents, cache);
+                if (childDigest != null) {
+                    digest.addDirectory(name, childDigest);
+                }
+            } else if (child.exists()) {
+                long modifiedTime = PathResolver.stableModifiedTime(child);
+                if (byContents || modifiedTime == PathResolver.UNKNOWN_MODIFIED_TIME) {
+                    digest.addFile(name, PathResolver.fingerprint(child, hash));
+                } else {
+                    digest.addFile(name, child.canExecute(), child.length(), modifiedTime);
+                }
+            }
+        }
+        byte[] result = digest.getDigest();
+        cache.put(path, result);
+        return result;
+    }
+}
@@ -0,0 +1,371 @@
+package com.magento.devsync.communications;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync style delta transfer of modified files. The endpoint receiving a file
+ * sends signatures (a rolling weak checksum plus an MD5) for each block of its
+ * current copy. The sending endpoint then slides a window over the new file
+ * contents, sending references to blocks the receiver already has and literal
+ * runs for everything else.
+ */
+public class FileDelta {
+
+    /**
+     * Files smaller than this are always sent whole.
+     */
+    public static final long MIN_FILE_SIZE = 64 * 1024;
+
+    /**
+     * Files larger than this are sent whole, so offsets within them fit in
+     * an int.
+     */
+    public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Delta operation: end of the delta stream.
+     */
+    public static final byte END = 0;
+
+    /**
+     * Delta operation: literal bytes follow (int length, then the bytes).
+     */
+    public static final byte LITERAL = 1;
+
+    /**
+     * Delta operation: copy blocks from the receiver's existing copy
+     * (int first block number, int block count).
+     */
+    public static final byte COPY = 2;
+
+    private static final int MIN_BLOCK_SIZE = 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int STRONG_LENGTH = 16;
+    private static final int MAX_LITERAL = 1024 * 1024;
+
+    /**
+     * Receives the delta operations as they are generated.
+     */
+    public static interface Output {
+        void literal(ByteBuffer data) throws IOException, ConnectionLost;
+        void copy(int firstBlock, int blockCount) throws IOException, ConnectionLost;
+    }
+
+    /**
+     * Block signatures of a file. The last partial block (if any) is not
+     * included, so it is always sent as a literal.
+     */
+    public static class Signatures {
+
+        public final int blockSize;
+        private final int[] weak;
+        private final byte[] strong;
+
+        private Signatures(int blockSize, int[] weak, byte[] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        public int blockCount() {
+            return weak.length;
+        }
+
+        public void writeTo(MessageWriter msg) {
+            msg.putInt(blockSize);
+            msg.putInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                msg.putInt(weak[i]);
+                msg.putBytes(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+        }
+
+        public static Signatures readFrom(MessageReader msg) {
+            int blockSize = msg.getInt();
+            int count = msg.getInt();
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * STRONG_LENGTH];
+            for (int i = 0; i < count; i++) {
+                weak[i] = msg.getInt();
+                msg.getBytes(STRONG_LENGTH).get(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            return new Signatures(blockSize, weak, strong);
+        }
+
+        private boolean strongMatches(int block, byte[] digest) {
+            int base = block * STRONG_LENGTH;
+            for (int i = 0; i < STRONG_LENGTH; i++) {
+                if (strong[base + i] != digest[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the file is a candidate for receiving a delta rather
+     * than a whole new copy.
+     */
+    public static boolean canUseDelta(File localPath) {
+        if (!localPath.isFile()) {
+            return false;
+        }
+        long length = localPath.length();
+        return length >= MIN_FILE_SIZE && length <= MAX_FILE_SIZE;
+    }
+
+    /**
+     * Pick a block size of around the square root of the file length, like
+     * rsync does, so the signature list and the chance of a match stay balanced.
+     */
+    public static int blockSize(long fileLength) {
+        long size = (long) Math.sqrt(fileLength);
+        size = (size + 7) & ~7;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Compute the block signatures of the receiver's copy of a file.
+     */
+    public static Signatures signatures(File basis) throws IOException {
+        try (FileChannel in = FileChannel.open(basis.toPath(), StandardOpenOption.READ)) {
+            long length = in.size();
+            int blockSize = blockSize(length);
+            int count = (int) (length / blockSize);
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * STRONG_LENGTH];
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            MessageDigest md = md5();
+            for (int i = 0; i < count; i++) {
+                block.clear();
+                while (block.hasRemaining()) {
+                    if (in.read(block) < 0) {
+                        throw new IOException("File was truncated while being read");
+                    }
+                }
+                block.flip();
+                weak[i] = weakChecksum(block);
+                System.arraycopy(strongChecksum(md, block), 0, strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            return new Signatures(blockSize, weak, strong);
+        }
+    }
+
+    /**
+     * Work out the delta between the receiver's copy (described by its block
+     * signatures) and the new file contents, which are read as they are
+     * needed. Throws an IOException if the file gets shorter while being
+     * read.
+     */
+    public static void encode(Signatures sig, FileChannel in, Output out) throws IOException, ConnectionLost {
+
+        int blockSize = sig.blockSize;
+        int length = (int) in.size();
+        Window data = new Window(in, length);
+
+        // Index the weak checksums, with a 16-bit tag table as a cheap first
+        // check so most window positions do not touch the map at all.
+        boolean[] tags = new boolean[65536];
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        for (int i = 0; i < sig.blockCount(); i++) {
+            tags[tag(sig.weak[i])] = true;
+            List<Integer> blocks = blocksByWeak.get(sig.weak[i]);
+            if (blocks == null) {
+                blocks = new ArrayList<>(1);
+                blocksByWeak.put(sig.weak[i], blocks);
+            }
+            blocks.add(i);
+        }
+
+        MessageDigest md = md5();
+        int literalStart = 0;
+        int copyStart = -1;
+        int copyCount = 0;
+        int pos = 0;
+        int a = 0;
+        int b = 0;
+        if (length >= blockSize) {
+            data.ensure(0, blockSize);
+            int weak = weakChecksum(data.slice(0, blockSize));
+            a = weak & 0xffff;
+            b = weak >>> 16;
+        }
+
+        while (pos + blockSize <= length) {
+            data.ensure(literalStart, Math.min(length, pos + blockSize + 1));
+            int weak = (b << 16) | a;
+            int match = -1;
+            if (tags[tag(weak)]) {
+                List<Integer> blocks = blocksByWeak.get(weak);
+                if (blocks != null) {
+                    byte[] digest = strongChecksum(md, data.slice(pos, blockSize));
+                    for (int block : blocks) {
+                        if (sig.strongMatches(block, digest)) {
+                            match = block;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (match >= 0) {
+                if (literalStart < pos) {
+                    if (copyCount > 0) {
+                        out.copy(copyStart, copyCount);
+                        copyCount = 0;
+                    }
+                    out.literal(data.slice(literalStart, pos - literalStart));
+                }
+                if (copyCount > 0 && copyStart + copyCount == match) {
+                    copyCount++;
+                } else {
+                    if (copyCount > 0) {
+                        out.copy(copyStart, copyCount);
+                    }
+                    copyStart = match;
+                    copyCount = 1;
+                }
+                pos += blockSize;
+                literalStart = pos;
+                if (pos + blockSize <= length) {
+                    data.ensure(pos, pos + blockSize);
+                    int next = weakChecksum(data.slice(pos, blockSize));
+                    a = next & 0xffff;
+                    b = next >>> 16;
+                }
+                continue;
+            }
+
+            // No match, roll the window forward one byte.
+            if (pos + blockSize < length) {
+                int outByte = data.get(pos) & 0xff;
+                int inByte = data.get(pos + blockSize) & 0xff;
+                a = (a - outByte + inByte) & 0xffff;
+                b = (b - blockSize * outByte + a) & 0xffff;
+            }
+            pos++;
+
+            // Do not let literal runs grow without limit.
+            if (pos - literalStart >= MAX_LITERAL) {
+                if (copyCount > 0) {
+                    out.copy(copyStart, copyCount);
+                    copyCount = 0;
+                }
+                out.literal(data.slice(literalStart, pos - literalStart));
+                literalStart = pos;
+            }
+        }
+
+        if (copyCount > 0) {
+            out.copy(copyStart, copyCount);
+        }
+        while (literalStart < length) {
+            int len = Math.min(MAX_LITERAL, length - literalStart);
+            data.ensure(literalStart, literalStart + len);
+            out.literal(data.slice(literalStart, len));
+            literalStart += len;
+        }
+    }
+
+    /**
+     * rsync's rolling checksum: the low 16 bits are the sum of the bytes, the
+     * high 16 bits the sum of the running sums.
+     */
+    private static int weakChecksum(ByteBuffer data) {
+        int offset = data.position();
+        int length = data.remaining();
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data.get(offset + i) & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static int tag(int weak) {
+        return ((weak >>> 16) ^ weak) & 0xffff;
+    }
+
+    private static byte[] strongChecksum(MessageDigest md, ByteBuffer data) {
+        md.reset();
+        md.update(data.duplicate());
+        return md.digest();
+    }
+
+    /**
+     * The part of the new file contents the encoder is working on, read in
+     * as it moves along. The file is not mapped, as a mapped file truncated
+     * by someone else raises SIGBUS, which the JVM turns into an
+     * InternalError at whatever access happens to touch the missing page.
+     */
+    private static class Window {
+
+        private final FileChannel in;
+        private final int length;
+        private final ByteBuffer buf = ByteBuffer.allocate(MAX_LITERAL + 2 * MAX_BLOCK_SIZE);
+
+        /**
+         * File offset of the first byte in the buffer.
+         */
+        private int base = 0;
+
+        private Window(FileChannel in, int length) {
+            this.in = in;
+            this.length = length;
+        }
+
+        /**
+         * Make sure the bytes from one offset up to another are in the
+         * buffer, dropping any before the first to make room.
+         */
+        private void ensure(int from, int to) throws IOException {
+            if (to <= base + buf.position()) {
+                return;
+            }
+            int discard = Math.min(from - base, buf.position());
+            buf.flip();
+            buf.position(discard);
+            buf.compact();
+            base += discard;
+            buf.limit(Math.min(buf.capacity(), length - base));
+            while (base + buf.position() < to) {
+                if (in.read(buf, base + buf.position()) < 0) {
+                    throw new IOException("File was truncated while being read");
+                }
+            }
+            buf.limit(buf.capacity());
+        }
+
+        private byte get(int offset) {
+            return buf.get(offset - base);
+        }
+
+        private ByteBuffer slice(int offset, int length) {
+            ByteBuffer slice = buf.duplicate();
+            slice.limit(offset - base + length);
+            slice.position(offset - base);
+            return slice;
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
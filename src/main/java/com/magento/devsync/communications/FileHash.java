@@ -0,0 +1,39 @@
+package com.magento.devsync.communications;
+
+/**
+ * An algorithm for hashing file contents into fingerprints. Both endpoints
+ * must use the same one, so it is negotiated during the
+ * CHECK-PROTOCOL-VERSION handshake, like the frame codec. Implementations
+ * must be safe to call from multiple threads.
+ */
+public interface FileHash {
+
+    /**
+     * Incremental hashing of one file (or other data).
+     */
+    public static interface Hasher {
+        void update(byte[] data, int offset, int length);
+
+        /**
+         * The digest of the data so far, getLength() bytes long.
+         */
+        byte[] digest();
+    }
+
+    /**
+     * Name used to identify the algorithm during the protocol handshake.
+     */
+    String getName();
+
+    /**
+     * Non-zero identifier stored with digests in the fingerprint cache.
+     */
+    byte getId();
+
+    /**
+     * Number of bytes in a digest.
+     */
+    int getLength();
+
+    Hasher newHasher();
+}
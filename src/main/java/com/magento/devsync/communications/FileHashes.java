@@ -0,0 +1,54 @@
+package com.magento.devsync.communications;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registry of the file hash algorithms this endpoint supports, in order of
+ * preference.
+ */
+public class FileHashes {
+
+    private static List<FileHash> hashes = new ArrayList<>();
+
+    static {
+        register(new XxHash64());
+        register(new MessageDigestHash("sha256", (byte) 2, "SHA-256"));
+        register(new MessageDigestHash("md5", (byte) 1, "MD5"));
+    }
+
+    /**
+     * Add an algorithm. Algorithms registered first are preferred during
+     * negotiation.
+     */
+    public static synchronized void register(FileHash hash) {
+        hashes.add(hash);
+    }
+
+    public static synchronized List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (FileHash h : hashes) {
+            names.add(h.getName());
+        }
+        return names;
+    }
+
+    /**
+     * The most preferred algorithm, used until one has been negotiated.
+     */
+    public static synchronized FileHash getDefault() {
+        return hashes.get(0);
+    }
+
+    /**
+     * Returns the algorithm with the specified name, or null if not supported.
+     */
+    public static synchronized FileHash byName(String name) {
+        for (FileHash h : hashes) {
+            if (h.getName().equals(name)) {
+                return h;
+            }
+        }
+        return null;
+    }
+}
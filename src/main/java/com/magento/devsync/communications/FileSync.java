@@ -4,20 +4,56 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
 
+import com.magento.devsync.config.Mount;
+import com.magento.devsync.config.SyncRule;
 import com.magento.devsync.config.YamlFile;
 import com.magento.devsync.filewatcher.FileWatcher;
 import com.magento.devsync.filewatcher.FileWatcherListener;
 import com.magento.devsync.filewatcher.ModifiedFileHistory;
 
+/**
+ * Sends the changes seen by a file watcher to the other endpoint. If the
+ * connection is lost, the watcher keeps running and the paths that change
+ * are queued (along with those of requests whose results were lost), to be
+ * synced once resume() is called with a new connection.
+ */
 public class FileSync {
 
+    /**
+     * Number of requests sent before waiting for the oldest to complete.
+     */
+    private static final int MAX_REQUESTS_IN_FLIGHT = 64;
+
     private YamlFile config;
     private PathResolver pathResolver;
-    private Requestor requestor;
+    private volatile Requestor requestor;
     private FileWatcher.Filter filter;
     private Logger logger;
     private ModifiedFileHistory modifiedFileHistory;
+    private Deque<Sent> inFlight = new ArrayDeque<>();
+    private long lastFileDeleted;
+    private boolean connected = true;
+    private TreeSet<String> pending = new TreeSet<>();
+    private volatile FileWatcher watcher;
+    private volatile boolean closed = false;
+
+    private static class Sent {
+        private final List<String> paths;
+        private final Future<Boolean> response;
+
+        private Sent(List<String> paths, Future<Boolean> response) {
+            this.paths = paths;
+            this.response = response;
+        }
+    }
 
     public FileSync(YamlFile config, PathResolver pathResolver, Requestor requestor, FileWatcher.Filter filter, Logger logger, ModifiedFileHistory modifiedFileHistory) {
         this.config = config;
@@ -29,9 +65,11 @@ public class FileSync {
     }
 
     public void run() throws ConnectionLost {
-        FileWatcher watcher;
         try {
-            watcher = new FileWatcher(config, pathResolver, new FileSyncListener(), filter, modifiedFileHistory, logger);
+            watcher = new FileWatcher(config, pathResolver, new QueueingListener(new FileSyncListener()), filter, modifiedFileHistory, logger);
+            if (closed) {
+                return;
+            }
             watcher.run();
         } catch (IOException e) {
             // TODO Auto-generated catch block
@@ -39,13 +77,232 @@ public class FileSync {
         }
     }
 
+    /**
+     * Stop watching, making run() return. May be called from any thread.
+     */
+    public void close() {
+        closed = true;
+        FileWatcher w = watcher;
+        if (w != null) {
+            w.close();
+        }
+    }
+
+    /**
+     * Carry on over a new connection. Each path queued while disconnected is
+     * synced according to what is there now: a directory is compared as by
+     * the initial sync, a file is sent if it differs, and a path that has
+     * gone is deleted. If the connection is lost again, the paths not yet
+     * synced stay queued.
+     */
+    public synchronized void resume(Requestor requestor) throws ConnectionLost {
+        this.requestor = requestor;
+        connectionLost();
+        connected = true;
+        List<String> paths = new ArrayList<>(pending);
+        pending.clear();
+        if (!paths.isEmpty()) {
+            logger.info("Syncing " + paths.size() + " paths changed while disconnected.");
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            try {
+                resync(paths.get(i));
+            } catch (ConnectionLost e) {
+                pending.addAll(paths.subList(i, paths.size()));
+                connectionLost();
+                throw e;
+            }
+        }
+        try {
+            while (!inFlight.isEmpty()) {
+                Requestor.await(inFlight.peek().response);
+                inFlight.remove();
+            }
+        } catch (ConnectionLost e) {
+            connectionLost();
+            throw e;
+        }
+    }
+
+    private void resync(String path) throws ConnectionLost {
+        File f = pathResolver.clientPathToFile(path);
+        try {
+            if (Files.isDirectory(f.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                logger.infoVerbose("Check-if-changed: " + path);
+                new SyncTreeWalker(requestor, config, pathResolver, logger).treeWalk(path, excludesFor(path));
+            } else if (f.exists()) {
+                logger.infoVerbose("Write-if-changed: " + f);
+                requestor.pathFingerprint(path, f.canExecute(), f, PathResolver.fingerprint(f, requestor.getFileHash()));
+            } else {
+                logger.infoVerbose("Removing: " + path);
+                sent(path, requestor.pathDeletedAsync(path));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Changed again while being synced, which the watcher will see.
+            logger.debug(e);
+        }
+    }
+
+    /**
+     * Stop sending requests until resume() is called, queueing the paths of
+     * requests still waiting for a response as they may never have arrived.
+     */
+    private void connectionLost() {
+        connected = false;
+        for (Sent s : inFlight) {
+            pending.addAll(s.paths);
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * Keep track of a request sent without waiting for the response, so a
+     * burst of changes is not sent one round trip at a time. The results of
+     * requests that have completed are collected as we go, so any failures
+     * get reported.
+     */
+    private void sent(String path, Future<Boolean> response) throws ConnectionLost {
+        sent(Collections.singletonList(path), response);
+    }
+
+    private void sent(List<String> paths, Future<Boolean> response) throws ConnectionLost {
+        inFlight.add(new Sent(paths, response));
+        while (!inFlight.isEmpty() && (inFlight.size() > MAX_REQUESTS_IN_FLIGHT || inFlight.peek().response.isDone())) {
+            // Only removed once complete, so it is queued again if the
+            // connection was lost.
+            Requestor.await(inFlight.peek().response);
+            inFlight.remove();
+        }
+    }
+
+    /**
+     * The exclusions of the watch rule the path is synced by, as used for
+     * the initial sync.
+     */
+    private List<String> excludesFor(String path) {
+        for (Mount m : config.mounts) {
+            for (SyncRule sr : m.watch) {
+                String clientPath = filter.path(m, sr);
+                if (clientPath != null && (path.equals(clientPath) || path.startsWith(clientPath + "/"))) {
+                    return sr.exclude;
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Passes changes on to the FileSyncListener while connected, otherwise
+     * queues the paths changed for resume() to sync.
+     */
+    private final class QueueingListener implements FileWatcherListener {
+
+        private FileWatcherListener listener;
+
+        private QueueingListener(FileWatcherListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void fileChanged(String path) {
+            synchronized (FileSync.this) {
+                try {
+                    if (connected) {
+                        listener.fileChanged(path);
+                        return;
+                    }
+                } catch (ConnectionLost e) {
+                    connectionLost();
+                }
+                pending.add(path);
+            }
+        }
+
+        @Override
+        public void filesChanged(List<String> paths) {
+            synchronized (FileSync.this) {
+                try {
+                    if (connected) {
+                        listener.filesChanged(paths);
+                        return;
+                    }
+                } catch (ConnectionLost e) {
+                    connectionLost();
+                }
+                pending.addAll(paths);
+            }
+        }
+
+        @Override
+        public void fileDeleted(String path) {
+            synchronized (FileSync.this) {
+                try {
+                    if (connected) {
+                        listener.fileDeleted(path);
+                        return;
+                    }
+                } catch (ConnectionLost e) {
+                    connectionLost();
+                }
+                pending.add(path);
+            }
+        }
+
+        @Override
+        public void directoryCreated(String path) {
+            synchronized (FileSync.this) {
+                try {
+                    if (connected) {
+                        listener.directoryCreated(path);
+                        return;
+                    }
+                } catch (ConnectionLost e) {
+                    connectionLost();
+                }
+                pending.add(path);
+            }
+        }
+
+        @Override
+        public void directoryDeleted(String path) {
+            synchronized (FileSync.this) {
+                try {
+                    if (connected) {
+                        listener.directoryDeleted(path);
+                        return;
+                    }
+                } catch (ConnectionLost e) {
+                    connectionLost();
+                }
+                pending.add(path);
+            }
+        }
+
+        @Override
+        public void pathMoved(String from, String to) {
+            synchronized (FileSync.this) {
+                try {
+                    if (connected) {
+                        listener.pathMoved(from, to);
+                        return;
+                    }
+                } catch (ConnectionLost e) {
+                    connectionLost();
+                }
+                pending.add(from);
+                pending.add(to);
+            }
+        }
+    }
+
     private final class FileSyncListener implements FileWatcherListener {
 
         @Override
         public void fileDeleted(String path) throws ConnectionLost {
             try {
                 logger.infoVerbose("Removing: " + path);
-                requestor.pathDeleted(path);
+                sent(path, requestor.pathDeletedAsync(path));
+                lastFileDeleted = System.currentTimeMillis();
             } catch (IOException e) {
                 throw new ConnectionLost(e);
             }
@@ -62,10 +319,20 @@ public class FileSync {
                     // might have been ourselves. So do a 'write if modified' sequence
                     // instead of a 'definitely write this file' sequence.
                     logger.infoVerbose("Write-if-changed: " + f);
-                    requestor.pathFingerprint(path, f.canExecute(), f, PathResolver.fingerprint(f));
+                    requestor.pathFingerprint(path, f.canExecute(), f, PathResolver.fingerprint(f, requestor.getFileHash()));
+                } else if (System.currentTimeMillis() - lastFileDeleted < RecentlyDeleted.KEEP_MILLIS) {
+                    // A file was deleted moments ago, so this may be the same
+                    // file renamed, which the other end still has a copy of.
+                    logger.infoVerbose("Write-if-not-renamed: " + f);
+                    requestor.pathFingerprint(path, f.canExecute(), f, PathResolver.fingerprint(f, requestor.getFileHash()));
+                } else if (f.length() >= FileDelta.MIN_FILE_SIZE) {
+                    // Large files are often only partly changed, so fingerprint
+                    // first to let the other end ask for just the differences.
+                    logger.infoVerbose("Writing changes: " + f);
+                    requestor.pathFingerprint(path, f.canExecute(), f, PathResolver.fingerprint(f, requestor.getFileHash()));
                 } else {
                     logger.infoVerbose("Writing: " + f);
-                    requestor.writeFile(path, f.canExecute(), f);
+                    sent(path, requestor.writeFileAsync(path, f.canExecute(), f));
                 }
             } catch (IOException e) {
                 // TODO Auto-generated catch block
@@ -73,11 +340,59 @@ public class FileSync {
             }
         }
 
+        /**
+         * Small files that fileChanged() would send whole are packed into
+         * WRITE-FILES requests instead, the rest are sent by fileChanged().
+         */
+        @Override
+        public void filesChanged(List<String> paths) throws ConnectionLost {
+            try {
+                WriteBatch batch = new WriteBatch();
+                List<String> batched = new ArrayList<>();
+                for (String path : paths) {
+                    File f = pathResolver.clientPathToFile(path);
+                    if (!writtenWhole(path, f) || !WriteBatch.canPack(f)) {
+                        fileChanged(path);
+                        continue;
+                    }
+                    try {
+                        logger.infoVerbose("Writing: " + f);
+                        batch.addFile(path, f.canExecute(), f);
+                        batched.add(path);
+                    } catch (IOException e) {
+                        // Deleted already, which the watcher will have seen.
+                        logger.debug(e);
+                    }
+                    if (batch.isFull()) {
+                        sent(batched, requestor.writeFilesAsync(batch));
+                        batch = new WriteBatch();
+                        batched = new ArrayList<>();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    sent(batched, requestor.writeFilesAsync(batch));
+                }
+            } catch (IOException e) {
+                throw new ConnectionLost(e);
+            }
+        }
+
+        /**
+         * Returns true if fileChanged() would send the file whole, rather
+         * than compare it with the other end's copy first.
+         */
+        private boolean writtenWhole(String path, File f) {
+            return !modifiedFileHistory.beingWrittenTo(path)
+                    && !modifiedFileHistory.contains(path)
+                    && System.currentTimeMillis() - lastFileDeleted >= RecentlyDeleted.KEEP_MILLIS
+                    && f.length() < FileDelta.MIN_FILE_SIZE;
+        }
+
         @Override
         public void directoryDeleted(String path) throws ConnectionLost {
             try {
                 logger.infoVerbose("Removing: " + path);
-                requestor.pathDeleted(path);
+                sent(path, requestor.pathDeletedAsync(path));
             } catch (IOException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -87,13 +402,25 @@ public class FileSync {
         @Override
         public void directoryCreated(String path) throws ConnectionLost {
             try {
+                if (modifiedFileHistory.contains(path)) {
+                    // Created by the other end, which has the files in it
+                    // already, so compare by digests rather than send them.
+                    logger.infoVerbose("Check-if-changed: " + path);
+                    new SyncTreeWalker(requestor, config, pathResolver, logger).treeWalk(path, excludesFor(path));
+                    return;
+                }
                 logger.infoVerbose("Creating: " + path);
-                requestor.createDirectory(path);
 
                 // A directory rename comes through as delete and create,
                 // so walk the 'new' directory to see if it contains
-                // files we need to copy.
-                walkNewDirectoryTree(path);
+                // files we need to copy. The directories and small files
+                // found are packed into as few requests as possible.
+                WriteBatch batch = new WriteBatch();
+                batch.addDirectory(path);
+                batch = walkNewDirectoryTree(path, path, batch);
+                if (!batch.isEmpty()) {
+                    sent(path, requestor.writeFilesAsync(batch));
+                }
 
             } catch (IOException e) {
                 // TODO Auto-generated catch block
@@ -101,16 +428,65 @@ public class FileSync {
             }
         }
 
-        private void walkNewDirectoryTree(String path) throws IOException, ConnectionLost {
+        @Override
+        public void pathMoved(String from, String to) throws ConnectionLost {
+            try {
+                if (modifiedFileHistory.contains(to)) {
+                    // Moved by the other end, so just check nothing changed.
+                    logger.infoVerbose("Check-if-changed: " + to);
+                    new SyncTreeWalker(requestor, config, pathResolver, logger).treeWalk(to, excludesFor(to));
+                    return;
+                }
+                logger.infoVerbose("Moving: " + from + " to " + to);
+                if (!requestor.movePath(from, to)) {
+                    directoryDeleted(from);
+                    directoryCreated(to);
+                    return;
+                }
+
+                // Files may have changed since the move, so compare the
+                // tree as the initial sync does (normally a single request,
+                // as the directory digests match).
+                SyncTreeWalker walker = new SyncTreeWalker(requestor, config, pathResolver, logger);
+                walker.treeWalk(to, excludesFor(to));
+            } catch (IOException e) {
+                throw new ConnectionLost(e);
+            }
+        }
+
+        /**
+         * Add the contents of a new directory to the batch, sending the batch
+         * whenever it fills up. Returns the batch still to be sent. Batches
+         * are tracked by the root of the new tree, as that is what needs
+         * syncing again if one is lost.
+         */
+        private WriteBatch walkNewDirectoryTree(String root, String path, WriteBatch batch) throws IOException, ConnectionLost {
             for (File f : pathResolver.clientPathToFile(path).listFiles()) {
                 String child = PathResolver.joinPath(path, f.getName());
                 if (Files.isDirectory(f.toPath(), LinkOption.NOFOLLOW_LINKS)) {
-                    requestor.createDirectory(child);
-                    walkNewDirectoryTree(child);
+                    batch.addDirectory(child);
+                    batch = walkNewDirectoryTree(root, child, batch);
+                } else if (WriteBatch.canPack(f)) {
+                    try {
+                        batch.addFile(child, f.canExecute(), f);
+                    } catch (IOException e) {
+                        // Deleted already, which will be synced separately.
+                        logger.debug(e);
+                    }
                 } else {
-                    requestor.writeFile(child, f.canExecute(), f);
+                    // The batch may create the directory the file goes in.
+                    if (!batch.isEmpty()) {
+                        sent(root, requestor.writeFilesAsync(batch));
+                        batch = new WriteBatch();
+                    }
+                    sent(child, requestor.writeFileAsync(child, f.canExecute(), f));
+                }
+                if (batch.isFull()) {
+                    sent(root, requestor.writeFilesAsync(batch));
+                    batch = new WriteBatch();
                 }
             }
+            return batch;
         }
     }
 }
@@ -0,0 +1,76 @@
+package com.magento.devsync.communications;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * The executable flag and content digest of a file, used to tell whether two
+ * copies of a file are the same. Sent over the wire as a boolean followed by
+ * the digest, whose length is fixed by the negotiated FileHash, then the
+ * size and modification time of the file when it was hashed. The size and
+ * time allow a cheap comparison before hashing, but are not part of the
+ * fingerprint's identity.
+ */
+public final class Fingerprint {
+
+    private final boolean canExecute;
+    private final byte[] digest;
+    private final long size;
+    private final long modifiedTime;
+
+    public Fingerprint(boolean canExecute, byte[] digest, long size, long modifiedTime) {
+        this.canExecute = canExecute;
+        this.digest = digest;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+    }
+
+    public boolean canExecute() {
+        return canExecute;
+    }
+
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Modification time in milliseconds, read before the file was hashed,
+     * or PathResolver.UNKNOWN_MODIFIED_TIME.
+     */
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    /**
+     * Compare with a fingerprint that is still in a message buffer, without
+     * copying it out.
+     */
+    public boolean matches(boolean canExecute, ByteBuffer digest) {
+        return this.canExecute == canExecute && ByteBuffer.wrap(this.digest).equals(digest);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Fingerprint)) {
+            return false;
+        }
+        Fingerprint f = (Fingerprint) o;
+        return canExecute == f.canExecute && Arrays.equals(digest, f.digest);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(digest) + (canExecute ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return (canExecute ? "exe-" : "plain-") + DatatypeConverter.printHexBinary(digest);
+    }
+}
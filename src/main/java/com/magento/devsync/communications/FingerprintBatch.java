@@ -0,0 +1,109 @@
+package com.magento.devsync.communications;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A group of paths sent to the other endpoint in one PATH-FINGERPRINT-BATCH
+ * request. Directories are included in walk order so the other end creates
+ * them before any files inside them are sent.
+ */
+public class FingerprintBatch {
+
+    /**
+     * Maximum number of paths in a batch.
+     */
+    public static final int MAX_ENTRIES = 500;
+
+    /**
+     * Rough upper bound on the encoded size of a batch.
+     */
+    public static final int MAX_BYTES = 64 * 1024;
+
+    public static class Entry {
+
+        public final String path;
+        public final boolean isDirectory;
+        public final boolean canExecute;
+        public final File contents;
+        public final Fingerprint fingerprint;
+
+        private Entry(String path, boolean isDirectory, boolean canExecute, File contents, Fingerprint fingerprint) {
+            this.path = path;
+            this.isDirectory = isDirectory;
+            this.canExecute = canExecute;
+            this.contents = contents;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private List<Entry> entries = new ArrayList<>();
+    private List<Entry> filesToSend = new ArrayList<>();
+    private List<Entry> filesToPatch = new ArrayList<>();
+    private int estimatedBytes = 0;
+    private Future<Boolean> response;
+
+    public void addDirectory(String path) {
+        entries.add(new Entry(path, true, false, null, null));
+        estimatedBytes += path.length() + 5;
+    }
+
+    public void addFile(String path, boolean canExecute, File contents, Fingerprint fingerprint) {
+        entries.add(new Entry(path, false, canExecute, contents, fingerprint));
+        estimatedBytes += path.length() + fingerprint.getDigest().length + 26;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public boolean isFull() {
+        return entries.size() >= MAX_ENTRIES || estimatedBytes >= MAX_BYTES;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * The result of the PATH-FINGERPRINT-BATCH request, once the batch has
+     * been sent.
+     */
+    public Future<Boolean> getResponse() {
+        return response;
+    }
+
+    protected void setResponse(Future<Boolean> response) {
+        this.response = response;
+    }
+
+    /**
+     * The files the other endpoint asked for a copy of, once the response
+     * has been received.
+     */
+    public List<Entry> getFilesToSend() {
+        return filesToSend;
+    }
+
+    /**
+     * The requested files the other endpoint has an older copy of, that
+     * could be sent as a delta.
+     */
+    public List<Entry> getFilesToPatch() {
+        return filesToPatch;
+    }
+
+    protected void sendMe(int index, boolean canPatch) {
+        Entry e = entries.get(index);
+        if (e.isDirectory) {
+            throw new RuntimeException("Protocol error - SEND-ME-FILES requested directory " + e.path);
+        }
+        if (canPatch) {
+            filesToPatch.add(e);
+        } else {
+            filesToSend.add(e);
+        }
+    }
+}
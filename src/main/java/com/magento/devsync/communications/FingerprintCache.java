@@ -0,0 +1,391 @@
+package com.magento.devsync.communications;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent index of file content digests, so files that have not changed
+ * since they were last hashed (even by an earlier run) do not have to be
+ * read again. Entries are keyed by the file's path and are only used if its
+ * size, modification time and inode are the same as when it was hashed.
+ * <p>
+ * The index is a hash table in a memory mapped file. Each entry holds a
+ * 128 bit hash of the absolute path (rather than the path itself, so all
+ * entries are the same size), the file attributes, and the digest of the
+ * contents along with the hash algorithm it was made with. The file is
+ * locked while open; if another process already has it open this process
+ * runs without a cache.
+ */
+public class FingerprintCache {
+
+    private static final int MAGIC = 0x44534643;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 80;
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    /**
+     * Files modified less than this long ago are not cached, as a second
+     * change within the resolution of the modification time would not be
+     * noticed.
+     */
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Modification time stored in an entry that must not match any file.
+     */
+    private static final long INVALID = Long.MIN_VALUE;
+
+    private static final int HASH_HI = 0;
+    private static final int HASH_LO = 8;
+    private static final int SIZE = 16;
+    private static final int MTIME = 24;
+    private static final int INODE = 32;
+    private static final int ALGORITHM = 40;
+    private static final int DIGEST = 48;
+
+    /**
+     * Longest digest that can be cached.
+     */
+    private static final int MAX_DIGEST_LENGTH = ENTRY_SIZE - DIGEST;
+
+    private static volatile FingerprintCache instance;
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileLock lock;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int count;
+    private boolean unixAttributes = true;
+
+    /**
+     * The attributes of a file a cached digest is only valid for.
+     */
+    public static class Key {
+        private final long hashHi;
+        private final long hashLo;
+        private final long size;
+        private final long mtime;
+        private final long inode;
+        private final boolean cacheable;
+
+        private Key(long hashHi, long hashLo, long size, long mtime, long inode, boolean cacheable) {
+            this.hashHi = hashHi;
+            this.hashLo = hashLo;
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.cacheable = cacheable;
+        }
+    }
+
+    private FingerprintCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open (or create) the cache file and make it the cache used by
+     * PathResolver.fingerprint(). Problems are logged and leave the process
+     * running without a cache.
+     */
+    public static void open(File file, Logger logger) {
+        FingerprintCache cache = new FingerprintCache(file);
+        try {
+            if (cache.load()) {
+                logger.debug("Fingerprint cache " + file + " has " + cache.count + " entries");
+                instance = cache;
+            } else {
+                logger.debug("Fingerprint cache " + file + " is in use by another process, not caching fingerprints");
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to open fingerprint cache " + file + ": " + e.getMessage());
+            cache.close();
+        }
+    }
+
+    /**
+     * The cache in use, or null if fingerprints are not being cached.
+     */
+    public static FingerprintCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Forget the digest of a file, called by the file watcher when it sees
+     * the file change. (A change would also be noticed from the file
+     * attributes, but this avoids relying on the modification time.)
+     */
+    public static void invalidate(File localPath) {
+        FingerprintCache cache = instance;
+        if (cache != null) {
+            cache.remove(localPath);
+        }
+    }
+
+    private boolean load() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            lock = raf.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            close();
+            return false;
+        }
+        if (raf.length() >= HEADER_SIZE) {
+            map(raf.length());
+            if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION
+                    && raf.length() == HEADER_SIZE + (long) map.getInt(8) * ENTRY_SIZE) {
+                capacity = map.getInt(8);
+                count = map.getInt(12);
+                return true;
+            }
+        }
+        // New, or not a cache file we understand: start again.
+        raf.setLength(0);
+        raf.setLength(HEADER_SIZE + (long) INITIAL_CAPACITY * ENTRY_SIZE);
+        map(raf.length());
+        initialize(map, INITIAL_CAPACITY);
+        capacity = INITIAL_CAPACITY;
+        count = 0;
+        return true;
+    }
+
+    private void map(long length) throws IOException {
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    private static void initialize(MappedByteBuffer map, int capacity) {
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, capacity);
+        map.putInt(12, 0);
+    }
+
+    private void close() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        map = null;
+        lock = null;
+        raf = null;
+    }
+
+    /**
+     * Read the attributes of a file to look up or store its digest. Returns
+     * null if they cannot be read.
+     */
+    public Key keyFor(File localPath) {
+        Path path = localPath.toPath();
+        long size;
+        long mtime;
+        long inode = 0;
+        try {
+            FileTime modified;
+            if (unixAttributes) {
+                try {
+                    Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+                    size = (Long) attrs.get("size");
+                    modified = (FileTime) attrs.get("lastModifiedTime");
+                    inode = (Long) attrs.get("ino");
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    unixAttributes = false;
+                    return keyFor(localPath);
+                }
+            } else {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                size = attrs.size();
+                modified = attrs.lastModifiedTime();
+            }
+            mtime = modified.to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            return null;
+        }
+        long[] hash = pathHash(localPath);
+        boolean cacheable = System.currentTimeMillis() * 1000000L - mtime > RACY_NANOS;
+        return new Key(hash[0], hash[1], size, mtime, inode, cacheable);
+    }
+
+    /**
+     * The cached digest of a file's contents, or null if there is none for
+     * the file as it is now made with the specified algorithm.
+     */
+    synchronized public byte[] get(Key key, FileHash hash) {
+        if (map == null || hash.getLength() > MAX_DIGEST_LENGTH) {
+            return null;
+        }
+        int slot = find(map, capacity, key.hashHi, key.hashLo);
+        int offset = offset(slot);
+        if (map.getLong(offset + HASH_HI) != key.hashHi || map.getLong(offset + HASH_LO) != key.hashLo
+                || map.getLong(offset + SIZE) != key.size || map.getLong(offset + MTIME) != key.mtime
+                || map.getLong(offset + INODE) != key.inode || map.get(offset + ALGORITHM) != hash.getId()) {
+            return null;
+        }
+        byte[] digest = new byte[hash.getLength()];
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = map.get(offset + DIGEST + i);
+        }
+        return digest;
+    }
+
+    /**
+     * Remember the digest of a file, unless it was modified too recently to
+     * trust its modification time.
+     */
+    synchronized public void put(Key key, FileHash hash, byte[] digest) {
+        if (map == null || !key.cacheable || digest.length > MAX_DIGEST_LENGTH) {
+            return;
+        }
+        int slot = find(map, capacity, key.hashHi, key.hashLo);
+        if (isEmpty(map, offset(slot))) {
+            if ((count + 1) * 4L > capacity * 3L) {
+                try {
+                    grow();
+                } catch (IOException e) {
+                    // Carry on with a full table, replacing nothing.
+                    return;
+                }
+                slot = find(map, capacity, key.hashHi, key.hashLo);
+            }
+            count++;
+            map.putInt(12, count);
+        }
+        int offset = offset(slot);
+        // Invalidate first, so a partly written entry never matches.
+        map.putLong(offset + MTIME, INVALID);
+        map.putLong(offset + HASH_HI, key.hashHi);
+        map.putLong(offset + HASH_LO, key.hashLo);
+        map.putLong(offset + SIZE, key.size);
+        map.putLong(offset + INODE, key.inode);
+        map.put(offset + ALGORITHM, hash.getId());
+        for (int i = 0; i < digest.length; i++) {
+            map.put(offset + DIGEST + i, digest[i]);
+        }
+        map.putLong(offset + MTIME, key.mtime);
+    }
+
+    synchronized private void remove(File localPath) {
+        if (map == null) {
+            return;
+        }
+        long[] hash = pathHash(localPath);
+        int offset = offset(find(map, capacity, hash[0], hash[1]));
+        if (!isEmpty(map, offset)) {
+            // The slot stays in use so later entries in the probe chain can
+            // still be found.
+            map.putLong(offset + MTIME, INVALID);
+        }
+    }
+
+    /**
+     * Double the size of the table, dropping invalidated entries. The new
+     * table is built in a separate file then copied over the locked one. The
+     * capacity in the header is only filled in once the copy is complete, so
+     * a table left half copied by a crash is discarded when next opened.
+     */
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        long newLength = HEADER_SIZE + (long) newCapacity * ENTRY_SIZE;
+        File newFile = new File(file.getPath() + ".tmp");
+        int newCount = 0;
+        try (RandomAccessFile newRaf = new RandomAccessFile(newFile, "rw")) {
+            newRaf.setLength(0);
+            newRaf.setLength(newLength);
+            MappedByteBuffer newMap = newRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newLength);
+            initialize(newMap, 0);
+            for (int slot = 0; slot < capacity; slot++) {
+                int from = offset(slot);
+                if (isEmpty(map, from) || map.getLong(from + MTIME) == INVALID) {
+                    continue;
+                }
+                int to = offset(find(newMap, newCapacity, map.getLong(from + HASH_HI), map.getLong(from + HASH_LO)));
+                for (int i = 0; i < ENTRY_SIZE; i += 8) {
+                    newMap.putLong(to + i, map.getLong(from + i));
+                }
+                newCount++;
+            }
+            newMap.putInt(12, newCount);
+
+            FileChannel channel = raf.getChannel();
+            map.putInt(8, 0);
+            raf.setLength(newLength);
+            long copied = 0;
+            while (copied < newLength) {
+                copied += newRaf.getChannel().transferTo(copied, newLength - copied, channel.position(copied));
+            }
+        } finally {
+            newFile.delete();
+        }
+        map(newLength);
+        map.putInt(8, newCapacity);
+        capacity = newCapacity;
+        count = newCount;
+    }
+
+    /**
+     * The slot holding the path hash, or the empty slot it would go in.
+     */
+    private static int find(MappedByteBuffer map, int capacity, long hashHi, long hashLo) {
+        int mask = capacity - 1;
+        int slot = (int) hashLo & mask;
+        while (true) {
+            int offset = offset(slot);
+            if (isEmpty(map, offset)
+                    || (map.getLong(offset + HASH_HI) == hashHi && map.getLong(offset + HASH_LO) == hashLo)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean isEmpty(MappedByteBuffer map, int offset) {
+        return map.getLong(offset + HASH_HI) == 0 && map.getLong(offset + HASH_LO) == 0;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+
+    private static long[] pathHash(File localPath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] d = md.digest(localPath.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            long hi = 0;
+            long lo = 0;
+            for (int i = 0; i < 8; i++) {
+                hi = (hi << 8) | (d[i] & 0xff);
+                lo = (lo << 8) | (d[i + 8] & 0xff);
+            }
+            return new long[] { hi, lo };
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.magento.devsync.communications;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compression algorithm that can be applied to individual frames sent over
+ * the multiplexed socket. The codec to use is negotiated during the
+ * CHECK-PROTOCOL-VERSION handshake. Implementations must be safe to call
+ * from multiple threads.
+ */
+public interface FrameCodec {
+
+    /**
+     * Name used to identify the codec during the protocol handshake.
+     */
+    String getName();
+
+    /**
+     * Non-zero identifier written in the header of frames compressed with
+     * this codec.
+     */
+    byte getId();
+
+    /**
+     * Compress the data into the start of the output array (which is at
+     * least as long as the data), returning the compressed length, or -1 if
+     * the result would not be any smaller than the original.
+     */
+    int compress(byte[] data, int offset, int length, byte[] output);
+
+    /**
+     * Decompress the data into the start of the output array. The length is
+     * the original (uncompressed) length.
+     */
+    void decompress(ByteBuffer data, byte[] output, int length) throws IOException;
+}
@@ -0,0 +1,86 @@
+package com.magento.devsync.communications;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Registry of the frame compression codecs this endpoint supports, in order
+ * of preference.
+ */
+public class FrameCodecs {
+
+    /**
+     * Frames smaller than this are never compressed.
+     */
+    public static final int COMPRESSION_THRESHOLD = 512;
+
+    /**
+     * File types that are already compressed, so are not worth compressing again.
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "ico",
+            "gz", "tgz", "bz2", "xz", "zip", "jar", "phar", "7z", "rar",
+            "woff", "woff2", "mp3", "mp4", "mov", "avi", "pdf"));
+
+    private static List<FrameCodec> codecs = new ArrayList<>();
+
+    static {
+        register(new DeflateCodec());
+    }
+
+    /**
+     * Add a codec. Codecs registered first are preferred during negotiation.
+     */
+    public static synchronized void register(FrameCodec codec) {
+        codecs.add(codec);
+    }
+
+    public static synchronized List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (FrameCodec c : codecs) {
+            names.add(c.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Returns the codec with the specified name, or null if not supported.
+     */
+    public static synchronized FrameCodec byName(String name) {
+        for (FrameCodec c : codecs) {
+            if (c.getName().equals(name)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the codec with the specified frame header identifier, or null
+     * if not supported.
+     */
+    public static synchronized FrameCodec byId(byte id) {
+        for (FrameCodec c : codecs) {
+            if (c.getId() == id) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns false if the file name suggests the contents are already
+     * compressed.
+     */
+    public static boolean isCompressible(String path) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            return true;
+        }
+        return !COMPRESSED_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase());
+    }
+}
@@ -59,6 +59,14 @@ public class Logger {
         }
     }
 
+    /**
+     * Returns true if debugVerbose() messages are output, so hot loops can
+     * skip building messages that would be thrown away.
+     */
+    public boolean isDebugVerbose() {
+        return debug && verbose;
+    }
+
     public void debugVerbose(String msg) {
         if (verbose) {
             debug(msg);
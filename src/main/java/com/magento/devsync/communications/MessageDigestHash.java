@@ -0,0 +1,62 @@
+package com.magento.devsync.communications;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A cryptographic hash from the Java security providers. Slower than a
+ * non-cryptographic hash, but changes cannot be missed through a collision.
+ */
+public class MessageDigestHash implements FileHash {
+
+    private String name;
+    private byte id;
+    private String algorithm;
+    private int length;
+
+    public MessageDigestHash(String name, byte id, String algorithm) {
+        this.name = name;
+        this.id = id;
+        this.algorithm = algorithm;
+        this.length = newDigest().getDigestLength();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public byte getId() {
+        return id;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public Hasher newHasher() {
+        final MessageDigest md = newDigest();
+        return new Hasher() {
+            @Override
+            public void update(byte[] data, int offset, int length) {
+                md.update(data, offset, length);
+            }
+
+            @Override
+            public byte[] digest() {
+                return md.digest();
+            }
+        };
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,27 +1,210 @@
 package com.magento.devsync.communications;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
 
+/**
+ * Decodes a received message. The payload (and body, if read into memory) are
+ * buffers from the BufferPool, returned to the pool by release() once the
+ * message has been processed.
+ */
 public class MessageReader {
 
     private ByteBuffer payload;
+    private ByteBuffer bodyBuffer;
+    private SocketChannel bodySocket;
+    private long bodyRemaining;
+    private CountDownLatch bodyConsumed;
+    private int requestId;
+    private boolean response;
 
     protected MessageReader(ByteBuffer payload) {
         this.payload = payload;
     }
 
+    /**
+     * A message followed by a body (file contents) that has already been
+     * read into memory.
+     */
+    protected MessageReader(ByteBuffer payload, ByteBuffer body) {
+        this.payload = payload;
+        this.bodyBuffer = body;
+        this.bodyRemaining = body.remaining();
+    }
+
+    /**
+     * A message followed by a body that is still waiting to be read from the
+     * socket. The multiplexer does not read the next frame until the body has
+     * been consumed.
+     */
+    protected MessageReader(ByteBuffer payload, SocketChannel socket, long bodyLength) {
+        this.payload = payload;
+        this.bodySocket = socket;
+        this.bodyRemaining = bodyLength;
+        this.bodyConsumed = new CountDownLatch(1);
+        if (bodyLength == 0) {
+            bodyConsumed.countDown();
+        }
+    }
+
+    /**
+     * Set from the frame header by the multiplexer: the id of the request this
+     * message is, or (if response is true) the request it is the response to.
+     */
+    protected void setRequestId(int requestId, boolean response) {
+        this.requestId = requestId;
+        this.response = response;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public boolean isResponse() {
+        return response;
+    }
+
+    /**
+     * A copy of the rest of the message (without any body) that stays valid
+     * after the channel has moved on to the next message, so it can be
+     * processed in the background. The copy must be released when done.
+     */
+    protected MessageReader detach() {
+        ByteBuffer copy = BufferPool.acquire(payload.remaining());
+        copy.put(payload.duplicate());
+        copy.flip();
+        MessageReader msg = new MessageReader(copy);
+        msg.setRequestId(requestId, response);
+        return msg;
+    }
+
+    /**
+     * Returns true if the frame carried a body after the message, rather than
+     * having the file contents inside the message.
+     */
+    public boolean hasBody() {
+        return bodyBuffer != null || bodySocket != null;
+    }
+
+    public long getBodyLength() {
+        return bodyRemaining;
+    }
+
+    /**
+     * Append the frame body to the file. If the body is still in the socket
+     * it is copied straight to the file with transferFrom(), without passing
+     * through the heap.
+     */
+    public void transferBodyTo(FileChannel file) throws IOException {
+        file.position(transferBodyTo(file, file.position()));
+    }
+
+    /**
+     * Write the frame body to the file at the specified position, leaving the
+     * file position alone (so several threads can write to different parts
+     * of the same file). Returns the position after the body.
+     */
+    public long transferBodyTo(FileChannel file, long position) throws IOException {
+        try {
+            if (bodyBuffer != null) {
+                while (bodyBuffer.hasRemaining()) {
+                    position += file.write(bodyBuffer, position);
+                }
+                bodyRemaining = 0;
+                return position;
+            }
+            while (bodyRemaining > 0) {
+                long actual = file.transferFrom(bodySocket, position, bodyRemaining);
+                if (actual <= 0) {
+                    throw new IOException("Socket closed while receiving file contents.");
+                }
+                position += actual;
+                bodyRemaining -= actual;
+            }
+            return position;
+        } finally {
+            discardBody();
+        }
+    }
+
+    /**
+     * Skip over any part of the body not yet consumed, so the multiplexer can
+     * move on to the next frame.
+     */
+    public void discardBody() {
+        if (bodyConsumed == null || bodyConsumed.getCount() == 0) {
+            return;
+        }
+        try {
+            ByteBuffer skip = ByteBuffer.allocate((int) Math.min(bodyRemaining, 64 * 1024));
+            while (bodyRemaining > 0) {
+                skip.clear();
+                skip.limit((int) Math.min(bodyRemaining, skip.capacity()));
+                int actual = bodySocket.read(skip);
+                if (actual < 0) {
+                    break;
+                }
+                bodyRemaining -= actual;
+            }
+        } catch (IOException e) {
+            // The multiplexer will find the socket closed.
+        }
+        bodyRemaining = 0;
+        bodyConsumed.countDown();
+    }
+
+    /**
+     * Called by the multiplexer to wait until the body has been read from the
+     * socket by the receiving thread.
+     */
+    protected void awaitBodyConsumed() {
+        while (bodyConsumed != null && bodyConsumed.getCount() > 0) {
+            try {
+                bodyConsumed.await();
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+    }
+
     public String getString() {
         int bufLen = payload.getInt();
-        byte[] strBuf = new byte[bufLen];
-        payload.get(strBuf);
-        return new String(strBuf, StandardCharsets.UTF_8);
+        String s = new String(payload.array(), payload.arrayOffset() + payload.position(), bufLen, StandardCharsets.UTF_8);
+        payload.position(payload.position() + bufLen);
+        return s;
+    }
+
+    /**
+     * Point the reference at the next string in the message, without
+     * creating a String.
+     */
+    public StringRef getString(StringRef ref) {
+        int bufLen = payload.getInt();
+        ref.set(payload.array(), payload.arrayOffset() + payload.position(), bufLen);
+        payload.position(payload.position() + bufLen);
+        return ref;
     }
 
     public boolean getBoolean() {
         return payload.get() != 0;
     }
 
+    /**
+     * Read a fingerprint with a digest of the specified length.
+     */
+    public Fingerprint getFingerprint(int length) {
+        boolean canExecute = getBoolean();
+        byte[] digest = new byte[length];
+        payload.get(digest);
+        long size = getLong();
+        long modifiedTime = getLong();
+        return new Fingerprint(canExecute, digest, size, modifiedTime);
+    }
+
     public byte getByte() {
         return payload.get();
     }
@@ -44,12 +227,33 @@ public class MessageReader {
         return payload.getLong();
     }
 
+    public boolean hasMore() {
+        return payload.remaining() > 0;
+    }
+
     public void throwIfMore() {
         if (payload.remaining() > 0) {
             throw new RuntimeException("Undecoded content remaining in message buffer.");
         }
     }
 
+    /**
+     * Skip any unread body and return the buffers to the pool. The message
+     * (and anything returned by getBytes() or getString(StringRef)) must not
+     * be used afterwards.
+     */
+    protected void release() {
+        discardBody();
+        if (payload != null) {
+            BufferPool.release(payload);
+            payload = null;
+        }
+        if (bodyBuffer != null) {
+            BufferPool.release(bodyBuffer);
+            bodyBuffer = null;
+        }
+    }
+
     public void dump() {
         System.out.println("Message dump: position=" + payload.position());
         for (int i = 0; i < payload.limit(); i++) {
@@ -1,44 +1,181 @@
 package com.magento.devsync.communications;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
 
+/**
+ * Builds a message in a buffer from the BufferPool. Values are encoded in
+ * place, so building a message creates no garbage. The buffer goes back to
+ * the pool once the message has been sent.
+ */
 public class MessageWriter {
 
-    private ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private ByteBuffer payload;
+    private boolean compressible = true;
+    private int requestId;
+    private boolean response;
+
+    /**
+     * Set to false if the message holds data that is already compressed
+     * (such as the contents of an image file), so the multiplexer does not
+     * waste time trying to compress it again.
+     */
+    public void setCompressible(boolean compressible) {
+        this.compressible = compressible;
+    }
+
+    public boolean isCompressible() {
+        return compressible;
+    }
+
+    /**
+     * Tag the message with the id of the request it is, or (if response is
+     * true) the request it is the response to. Set by the channel.
+     */
+    protected void setRequestId(int requestId, boolean response) {
+        this.requestId = requestId;
+        this.response = response;
+    }
+
+    protected int getRequestId() {
+        return requestId;
+    }
+
+    protected boolean isResponse() {
+        return response;
+    }
 
     public void putByte(byte b) {
-        payload.write(b);
+        ensureRemaining(1).put(b);
     }
 
     public void putBytes(byte[] bytes, int offset, int length) {
-        payload.write(bytes, offset, length);
+        ensureRemaining(length).put(bytes, offset, length);
+    }
+
+    public void putBytes(ByteBuffer bytes) {
+        int position = bytes.position();
+        ensureRemaining(bytes.remaining()).put(bytes);
+        bytes.position(position);
+    }
+
+    /**
+     * Read a region of a file into the message. Throws an IOException if the
+     * file is shorter than expected (it was truncated after being checked).
+     */
+    public void putBytes(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buf = ensureRemaining(length);
+        int start = buf.position();
+        int end = start + length;
+        buf.limit(end);
+        while (buf.hasRemaining() && file.read(buf, position + buf.position() - start) > 0) {
+            // Keep reading until the buffer is full.
+        }
+        buf.limit(buf.capacity());
+        if (buf.position() < end) {
+            throw new IOException("File was truncated while being read");
+        }
     }
 
     public void putInt(int num) {
-        ByteBuffer lenBuf = ByteBuffer.allocate(Integer.BYTES);
-        lenBuf.putInt(num);
-        payload.write(lenBuf.array(), 0, lenBuf.position());
+        ensureRemaining(Integer.BYTES).putInt(num);
     }
 
     public void putLong(long num) {
-        ByteBuffer lenBuf = ByteBuffer.allocate(Long.BYTES);
-        lenBuf.putLong(num);
-        payload.write(lenBuf.array(), 0, lenBuf.position());
+        ensureRemaining(Long.BYTES).putLong(num);
     }
 
+    /**
+     * Write the string length then the string encoded as UTF-8, directly
+     * into the message buffer.
+     */
     public void putString(String string) {
-        byte[] buf = string.getBytes(StandardCharsets.UTF_8);
-        putInt(buf.length);
-        payload.write(buf, 0, buf.length);
+        // A UTF-8 encoded char never takes more than 3 bytes (a surrogate
+        // pair takes 4 bytes for 2 chars).
+        ByteBuffer buf = ensureRemaining(Integer.BYTES + string.length() * 3);
+        int lengthPosition = buf.position();
+        int pos = lengthPosition + Integer.BYTES;
+        byte[] array = buf.array();
+        int base = buf.arrayOffset();
+        for (int i = 0; i < string.length(); i++) {
+            int cp = string.charAt(i);
+            if (Character.isHighSurrogate((char) cp) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                cp = Character.toCodePoint((char) cp, string.charAt(++i));
+            } else if (Character.isSurrogate((char) cp)) {
+                cp = '?';
+            }
+            if (cp < 0x80) {
+                array[base + pos++] = (byte) cp;
+            } else if (cp < 0x800) {
+                array[base + pos++] = (byte) (0xc0 | (cp >> 6));
+                array[base + pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (cp < 0x10000) {
+                array[base + pos++] = (byte) (0xe0 | (cp >> 12));
+                array[base + pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                array[base + pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                array[base + pos++] = (byte) (0xf0 | (cp >> 18));
+                array[base + pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                array[base + pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                array[base + pos++] = (byte) (0x80 | (cp & 0x3f));
+            }
+        }
+        buf.putInt(lengthPosition, pos - lengthPosition - Integer.BYTES);
+        buf.position(pos);
     }
 
     public void putBoolean(boolean val) {
-        payload.write(val ? 1 : 0);
+        ensureRemaining(1).put(val ? (byte) 1 : (byte) 0);
+    }
+
+    /**
+     * Digests are a fixed length for the negotiated hash, so the length is
+     * not written.
+     */
+    public void putFingerprint(Fingerprint fingerprint) {
+        putBoolean(fingerprint.canExecute());
+        putBytes(fingerprint.getDigest(), 0, fingerprint.getDigest().length);
+        putLong(fingerprint.getSize());
+        putLong(fingerprint.getModifiedTime());
+    }
+
+    public int size() {
+        return payload == null ? 0 : payload.position();
+    }
+
+    /**
+     * The array holding the encoded message, from index 0 to size().
+     */
+    protected byte[] array() {
+        return ensureRemaining(0).array();
+    }
+
+    /**
+     * Give the buffer back to the pool once the message has been sent. If
+     * the writer is used again it starts a new, empty message.
+     */
+    protected void release() {
+        if (payload != null) {
+            BufferPool.release(payload);
+            payload = null;
+        }
     }
 
-    protected byte[] toByteArray() {
-        return payload.toByteArray();
+    /**
+     * Make sure there is room for the specified number of bytes, moving to
+     * a bigger buffer if needed.
+     */
+    private ByteBuffer ensureRemaining(int length) {
+        if (payload == null) {
+            payload = BufferPool.acquire(Math.max(length, BufferPool.MIN_SIZE));
+        } else if (payload.remaining() < length) {
+            ByteBuffer bigger = BufferPool.acquire(Math.max(payload.position() + length, payload.capacity() * 2));
+            payload.flip();
+            bigger.put(payload);
+            BufferPool.release(payload);
+            payload = bigger;
+        }
+        return payload;
     }
 }
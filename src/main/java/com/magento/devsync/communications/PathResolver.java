@@ -3,13 +3,33 @@ package com.magento.devsync.communications;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-
-import javax.xml.bind.DatatypeConverter;
 
 public abstract class PathResolver {
 
+    /**
+     * Prefix of temporary files used while a file is being rebuilt. These
+     * are never synced or watched.
+     */
+    public static final String TEMP_FILE_PREFIX = ".devsync-";
+
+    /**
+     * Size of the buffer files are read into to be hashed.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Modification time sent for a file whose time is unknown, or too recent
+     * to be relied on. It never matches the other endpoint's copy.
+     */
+    public static final long UNKNOWN_MODIFIED_TIME = 0;
+
+    /**
+     * A file modified this recently (in milliseconds) could be modified again
+     * without its modification time changing, as file system clocks are
+     * coarse.
+     */
+    private static final long RACY_MILLIS = 2000;
+
     /**
      * Convert a client relative path to a real file name that can be used to open files.
      * On the client, "~/" is permitted at the start of the path to refer to the users home directory.
@@ -17,24 +37,99 @@ public abstract class PathResolver {
      */
     abstract public File clientPathToFile(String clientRelativePath);
 
-    public static String fingerprint(File localPath) {
-        // MD5 checksum the file.
-        String fingerprint = localPath.canExecute() ? "exe-" : "plain-";
+    public static Fingerprint fingerprint(File localPath, FileHash hash) {
+        // Hash the file, unless the cache has the digest of the file as it
+        // is now.
+        // The size and time are read first, so if the file changes while
+        // being hashed they are older than the contents hashed, which only
+        // makes the next comparison hash the file again.
+        boolean canExecute = localPath.canExecute();
+        long modifiedTime = stableModifiedTime(localPath);
+        long size = localPath.length();
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] readBuf = new byte[8192];
-            try (InputStream is = new FileInputStream(localPath);
-                    DigestInputStream dis = new DigestInputStream(is, md)) {
-                while (dis.read(readBuf) >= 0) {
-                    // Empty - it is merging into the MD5 checksum.
+            FingerprintCache cache = FingerprintCache.getInstance();
+            FingerprintCache.Key key = cache == null ? null : cache.keyFor(localPath);
+            byte[] digest = key == null ? null : cache.get(key, hash);
+            if (digest == null) {
+                FileHash.Hasher hasher = hash.newHasher();
+                byte[] readBuf = new byte[READ_BUFFER_SIZE];
+                try (InputStream is = new FileInputStream(localPath)) {
+                    int n;
+                    while ((n = is.read(readBuf)) >= 0) {
+                        hasher.update(readBuf, 0, n);
+                    }
+                }
+                digest = hasher.digest();
+                if (key != null) {
+                    cache.put(key, hash, digest);
                 }
             }
-            byte[] digest = md.digest();
-            fingerprint += DatatypeConverter.printHexBinary(digest);
+            return new Fingerprint(canExecute, digest, size, modifiedTime);
         } catch (Exception e) {
             throw new RuntimeException("Failed to form fingerprint of " + localPath, e);
         }
-        return fingerprint;
+    }
+
+    /**
+     * The modification time of a file in milliseconds, for comparing with the
+     * other endpoint's copy, or UNKNOWN_MODIFIED_TIME if the file does not
+     * exist or was modified too recently to be sure the time will change on
+     * the next write.
+     */
+    public static long stableModifiedTime(File localPath) {
+        long modified = localPath.lastModified();
+        if (System.currentTimeMillis() - modified < RACY_MILLIS) {
+            return UNKNOWN_MODIFIED_TIME;
+        }
+        return modified;
+    }
+
+    /**
+     * Give a file the modification time of the other endpoint's copy, if
+     * known.
+     */
+    public static void setModifiedTime(File localPath, long modifiedTime) {
+        if (modifiedTime != UNKNOWN_MODIFIED_TIME) {
+            localPath.setLastModified(modifiedTime);
+        }
+    }
+
+    /**
+     * The temporary file a new version of the specified file is written to
+     * before being moved into place.
+     */
+    public static File tempFileFor(File localPath) {
+        return new File(localPath.getParentFile(), TEMP_FILE_PREFIX + localPath.getName() + ".tmp");
+    }
+
+    /**
+     * The file a WRITE-FILE is received into. If the connection is lost
+     * part way through it is left behind, so the transfer can carry on from
+     * where it got to (see Reactor).
+     */
+    public static File partialFileFor(File localPath) {
+        return new File(localPath.getParentFile(), TEMP_FILE_PREFIX + localPath.getName() + ".part");
+    }
+
+    /**
+     * Returns true for the names of temporary files from tempFileFor() and
+     * partialFileFor().
+     */
+    public static boolean isTempFile(String name) {
+        return name.startsWith(TEMP_FILE_PREFIX);
+    }
+
+    /**
+     * Returns true if either client path is the same as, or inside, the
+     * other.
+     */
+    public static boolean pathsOverlap(String path1, String path2) {
+        path1 = path1.startsWith("./") ? path1.substring(2) : path1;
+        path2 = path2.startsWith("./") ? path2.substring(2) : path2;
+        if (path1.equals(".") || path2.equals(".")) {
+            return true;
+        }
+        return path1.equals(path2) || path1.startsWith(path2 + "/") || path2.startsWith(path1 + "/");
     }
 
     /**
@@ -2,11 +2,29 @@ package com.magento.devsync.communications;
 
 public interface ProtocolSpec {
 
-    public static final int PROTOCOL_VERSION = 1;
+    public static final int PROTOCOL_VERSION = 17;
 
     /**
      * Immediately after socket is opened, client sends the protocol version to
-     * the server. The server responds with OK or NOT_OK.
+     * the server, along with the names of the frame compression codecs and
+     * then the file hash algorithms it supports, each in order of preference,
+     * a flag asking for paranoid mode (see PATH-FINGERPRINT), and the token
+     * identifying the client's session. The server responds with OK holding
+     * the name of the codec both ends will compress frames with (empty for
+     * none), the name of the hash both ends will fingerprint files with, and
+     * a flag saying whether the session was resumed, or NOT_OK.
+     * <p>
+     * A client that loses its connection reconnects with the same token. If
+     * the server still has the session, its file watcher kept running and
+     * both ends have queued the paths that changed meanwhile, so the initial
+     * sync only sends those paths rather than walking the whole tree. A file
+     * part way through being received is kept, and its transfer carries on
+     * as a WRITE-DELTA against what was received.
+     * <p>
+     * A fingerprint is sent as the file's executable flag followed by the raw
+     * digest, whose length is fixed by the hash, as are directory digests.
+     * It is followed by the file's size and modification time (milliseconds,
+     * or 0 if unknown or too recent to rely on).
      */
     public static final byte CHECK_PROTOCOL_VERSION = 0;
 
@@ -19,11 +37,12 @@ public interface ProtocolSpec {
     public static final byte SET_CONFIG = 1;
 
     /**
-     * At startup, the client first scans all its local paths that may need to
-     * be sent to the server sending a PATH-FINGERPRINT message per path. When
-     * done, a START-SERVER-SYNC message is sent to the server, causing the server to
-     * then check for any files it should be sending back. A response is
-     * always returned of OK or NOT-OK.
+     * At startup, the client sends START-SERVER-SYNC before scanning the
+     * local paths that may need to be sent to the server, so the server can
+     * check for files it should be sending back at the same time. The server
+     * starts with the trees that do not overlap any pushed to it; see
+     * PUSH-COMPLETE for the rest. A response is always returned of OK or
+     * NOT-OK.
      */
     public static final byte START_SERVER_SYNC = 2;
 
@@ -47,6 +66,12 @@ public interface ProtocolSpec {
      * file already), NO-OK (something went wrong), or SEND-ME-FILE (a copy is
      * needed after looking at the fingerprint). A separate WRITE-FILE request
      * is triggered next.
+     * <p>
+     * If the local copy has the same size, modification time and executable
+     * flag, it is taken to match without hashing it, unless the endpoints
+     * agreed on paranoid mode. A local copy whose contents match but whose
+     * modification time differs is given the sender's time, so the next
+     * comparison is cheap.
      */
     public static final byte PATH_FINGERPRINT = 4;
 
@@ -57,9 +82,15 @@ public interface ProtocolSpec {
     public static final byte SEND_ME_FILE = 5; 
 
     /**
-     * Initiate writing a file, with a response of OK or NOT-OK. This will be
-     * followed by a series of MORE-DATA messages (each with OK/NOT-OK) if
-     * the file is large, until an 'eof' header is set to true.
+     * Initiate writing a file. This will be followed by a series of MORE-DATA
+     * messages if the file is large, until an 'eof' header is set to true.
+     * Each chunk that is not the last is answered with DATA-ACK. The sender
+     * may have several chunks unacknowledged at once rather than waiting
+     * for each to be written. The last chunk is answered with a single OK or
+     * NOT-OK for the whole file. Large chunks are sent as a frame body after
+     * the message so they can be copied straight between disk and socket.
+     * The first message also holds the file's modification time, which the
+     * receiver gives the file once written (all writes preserve it).
      */
     public static final byte WRITE_FILE = 6;
 
@@ -101,4 +132,142 @@ public interface ProtocolSpec {
      * Set by client
      */
     public static final byte INITIALIZE_PROJECT = 14;
+
+    /**
+     * A batch of PATH-FINGERPRINT checks (and CREATE-DIRECTORY requests) in a
+     * single message, in file walk order. Used during the initial file
+     * synchronization so it does not cost a network round trip per file.
+     * Several batches may be sent before the first response is read. The
+     * response is SEND-ME-FILES or NOT-OK.
+     */
+    public static final byte PATH_FINGERPRINT_BATCH = 15;
+
+    /**
+     * Response to a PATH-FINGERPRINT-BATCH request, holding the positions
+     * in the batch of the files that need a copy sent (each with a flag
+     * saying whether an older copy exists that a delta could be applied to),
+     * followed by the positions and error messages of any entries that could
+     * not be synced. WRITE-FILE requests are sent next for the requested
+     * files, or a PATH-FINGERPRINT to negotiate a delta for flagged files.
+     */
+    public static final byte SEND_ME_FILES = 16;
+
+    /**
+     * Response to a WRITE-FILE or MORE-DATA chunk that was not the last of the
+     * file, granting the sender credit to send another chunk. Errors writing
+     * the file are held back and reported by the response to the last chunk.
+     */
+    public static final byte DATA_ACK = 17;
+
+    /**
+     * A response code to a fingerprint request, indicating the file is
+     * different but the endpoint has an older copy large enough to be worth
+     * patching. Holds the block signatures of the existing copy. The sender
+     * replies with WRITE-DELTA (or WRITE-FILE if it cannot produce a delta).
+     */
+    public static final byte SEND_ME_DELTA = 18;
+
+    /**
+     * Rebuild a file from the existing copy plus a list of literal runs and
+     * block references (see FileDelta), followed by MORE-DELTA messages until
+     * the END operation is reached. Chunks are acknowledged with DATA-ACK like
+     * WRITE-FILE. The final response is OK, or NOT-OK if the rebuilt file did
+     * not match the expected fingerprint (in which case the whole file
+     * should be sent instead).
+     */
+    public static final byte WRITE_DELTA = 19;
+
+    /**
+     * Continuation of a WRITE-DELTA request.
+     */
+    public static final byte MORE_DELTA = 20;
+
+    /**
+     * Start a striped write of a large file (path, can execute flag,
+     * modification time, transfer id, and file size). The receiver creates and preallocates a temporary
+     * file then responds OK or NOT-OK. The contents follow as WRITE-RANGE
+     * requests sent in parallel on the stripe channels, then FINISH-STRIPED.
+     */
+    public static final byte WRITE_STRIPED = 21;
+
+    /**
+     * A chunk of a striped write (transfer id, position in the file, last
+     * chunk flag, then the data), written at its position in the temporary
+     * file. Chunks are acknowledged with DATA-ACK like WRITE-FILE, except the
+     * last chunk of a range which gets OK or NOT-OK.
+     */
+    public static final byte WRITE_RANGE = 22;
+
+    /**
+     * Sent on the main channel once all ranges of a striped write have been
+     * sent (or sending failed). The receiver moves the temporary file into
+     * place if every byte arrived and responds OK, otherwise it deletes the
+     * temporary file and responds NOT-OK.
+     */
+    public static final byte FINISH_STRIPED = 23;
+
+    /**
+     * Sent during the initial file synchronization before fingerprinting the
+     * files of a tree: a flag saying whether this starts a new walk, the
+     * paths excluded from the walk, then a list of directory paths and the
+     * digests of their contents (see DirectoryDigest). Files are included in
+     * the digests by size and modification time, or by fingerprint in
+     * paranoid mode, so an unchanged tree is compared without hashing it.
+     * The walk starts with
+     * the top directory and only descends into directories that differ. The
+     * response is DIGESTS-DIFFER or NOT-OK.
+     */
+    public static final byte DIRECTORY_DIGESTS = 24;
+
+    /**
+     * Response to a DIRECTORY-DIGESTS request, holding the positions in the
+     * request of the directories whose local copy is missing or different.
+     * The files of those directories are then sent in PATH-FINGERPRINT-BATCH
+     * requests, and the digests of their subdirectories compared next.
+     */
+    public static final byte DIGESTS_DIFFER = 25;
+
+    /**
+     * Several small files and directories in one message, in order: for each
+     * a directory flag and path, then for files the can execute flag,
+     * modification time, length and contents. Each file is written to a
+     * temporary file and moved into place, so it is never seen half written;
+     * a failure writing one does not stop the rest. The response is OK, or
+     * NOT-OK listing the paths that failed.
+     */
+    public static final byte WRITE_FILES = 26;
+
+    /**
+     * Rename a file or directory (from path, then to path), sent when the
+     * file watcher sees a directory renamed rather than deleted and created.
+     * The response is OK, including when the path has already been moved,
+     * or NOT-OK if it could not be moved (such as the new path already
+     * existing), in which case the sender deletes the old path and sends the
+     * new one instead. After a move the sender checks the tree with
+     * DIRECTORY-DIGESTS, so anything changed meanwhile is synced.
+     */
+    public static final byte MOVE_PATH = 27;
+
+    /**
+     * Sent by the client every few seconds while watching, to notice a
+     * connection that has stopped working without the socket being closed.
+     * The response is OK.
+     */
+    public static final byte PING = 28;
+
+    /**
+     * Sent by the client during the initial sync once it has walked the
+     * trees it pushes that overlap trees the server pulls back (such as
+     * 'sync' rules), so the server can walk those too. The client then goes
+     * on to walk the rest of its trees. The response is OK.
+     */
+    public static final byte PUSH_COMPLETE = 29;
+
+    /**
+     * Sent in place of the next MORE-DATA or MORE-DELTA when the sender can
+     * no longer read the file it is sending (it was truncated, say). The
+     * receiver throws away what it has received of the file rather than
+     * keeping a damaged copy, and responds NOT-OK.
+     */
+    public static final byte ABORT_WRITE = 30;
 }
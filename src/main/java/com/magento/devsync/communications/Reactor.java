@@ -5,13 +5,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import com.magento.devsync.client.ClientMaster;
 import com.magento.devsync.client.ClientPathResolver;
@@ -26,7 +33,7 @@ import com.magento.devsync.server.ServerPathResolver;
  * It reacts to requests initiated by a requestor on the other end of
  * the socket. Responses are sent back are encoded by the reactor as well.
  */
-public class Reactor implements Runnable {
+public class Reactor implements Runnable, Channel.MessageHandler {
 
     private Logger logger;
     private ServerMaster server;
@@ -37,8 +44,19 @@ public class Reactor implements Runnable {
     private FileOutputStream writeFileOutputStream;
     private FileChannel writeFileChannel;
     private File writeFileName;
+    private File writeFilePartial;
     private boolean writeFileCanExecute;
+    private long writeFileModifiedTime;
+    private Exception writeFileError;
+    private FileChannel deltaBasisChannel;
+    private File deltaTempFile;
+    private Fingerprint deltaFingerprint;
+    private int deltaBlockSize;
     private ModifiedFileHistory modifiedFileLog;
+    private MessageReader request;
+    private Executor batchLane = new SerialExecutor();
+    private Map<String, byte[]> directoryDigests = new HashMap<>();
+    private RecentlyDeleted recentlyDeleted = new RecentlyDeleted();
 
     /**
      * Constructor used by client main program.  
@@ -82,6 +100,8 @@ public class Reactor implements Runnable {
                 }
                 processMessage(msg);
             }
+        } catch (ConnectionLost e) {
+            logger.debug(e);
         } catch (Exception e) {
             if (gracefulExit) {
                 logger.info(e);
@@ -89,11 +109,64 @@ public class Reactor implements Runnable {
                 logger.warn(e);
             }
         }
+        closed();
+    }
+
+    /**
+     * Called once the connection has gone and every request received has
+     * been processed. A file part way through being received is left as a
+     * partial file, so the transfer can carry on from there if the other
+     * endpoint reconnects. Striped writes are not resumed, so are thrown
+     * away.
+     */
+    @Override
+    public void closed() {
+        try {
+            if (deltaBasisChannel != null) {
+                deltaBasisChannel.close();
+            }
+            if (writeFileChannel != null) {
+                writeFileChannel.close();
+                writeFileOutputStream.close();
+            }
+        } catch (IOException e) {
+            logger.debug(e);
+        }
+        if (deltaTempFile != null) {
+            deltaTempFile.delete();
+        }
+        if (writeFileChannel != null && modifiedFileLog != null) {
+            modifiedFileLog.writingCompleted();
+        }
+        // The stripe reactors have no log, and leave this to the main one.
+        if (modifiedFileLog != null && StripedWrite.closed(channel.getMultiplexer())) {
+            modifiedFileLog.writingCompleted();
+        }
+        deltaBasisChannel = null;
+        deltaTempFile = null;
+        writeFilePartial = null;
+        writeFileChannel = null;
+        writeFileOutputStream = null;
+        if (server != null) {
+            server.disconnected();
+        }
+    }
+
+    /**
+     * Process one request, when requests are dispatched to a worker pool
+     * rather than read by run().
+     */
+    @Override
+    public void handle(MessageReader msg) {
+        processMessage(msg);
     }
 
     private void processMessage(MessageReader msg) {
 
         try {
+            // Responses go back to the request being processed.
+            request = msg;
+
             // First byte is the 'command'.
             int command = msg.getByte();
 
@@ -106,11 +179,60 @@ public class Reactor implements Runnable {
                     throw new RuntimeException("Client should never recevie procotol check request.");
                 }
                 int version = msg.getInt();
-                msg.throwIfMore();
                 if (version != ProtocolSpec.PROTOCOL_VERSION) {
                     respondNotOk("Client and server are at different protocol versions. (" + version + " vs " + ProtocolSpec.PROTOCOL_VERSION + ")");
                 } else {
-                    respondOk();
+                    // Use the client's most preferred codec that we support.
+                    FrameCodec codec = null;
+                    int codecCount = msg.getInt();
+                    for (int i = 0; i < codecCount; i++) {
+                        String name = msg.getString();
+                        if (codec == null) {
+                            codec = FrameCodecs.byName(name);
+                        }
+                    }
+                    // Likewise the client's most preferred file hash, unless
+                    // there is a blob store, which needs a hash strong
+                    // enough to identify files across projects.
+                    FileHash hash = null;
+                    FileHash strongHash = null;
+                    int hashCount = msg.getInt();
+                    for (int i = 0; i < hashCount; i++) {
+                        FileHash h = FileHashes.byName(msg.getString());
+                        if (hash == null) {
+                            hash = h;
+                        }
+                        if (strongHash == null && h != null && BlobStore.canUse(h)) {
+                            strongHash = h;
+                        }
+                    }
+                    if (BlobStore.getInstance() != null && strongHash != null) {
+                        hash = strongHash;
+                    }
+                    boolean paranoid = msg.getBoolean();
+                    String sessionToken = msg.getString();
+                    msg.throwIfMore();
+                    if (hash == null) {
+                        respondNotOk("Client and server have no file hash algorithm in common.");
+                        break;
+                    }
+                    logger.debugVerbose("Compression: " + (codec == null ? "none" : codec.getName()) + ", hash: " + hash.getName() + (paranoid ? ", paranoid" : ""));
+                    channel.setCodec(codec);
+                    channel.setFileHash(hash);
+                    channel.setParanoid(paranoid);
+                    // Carry on where the client's last connection left off,
+                    // if we still have its session.
+                    boolean resumed = server.resumeSession(sessionToken);
+                    if (resumed) {
+                        logger.debugVerbose("Resuming session " + sessionToken);
+                        modifiedFileLog = server.getModifiedFileHistory();
+                    }
+                    MessageWriter resp = new MessageWriter();
+                    resp.putByte(ProtocolSpec.OK);
+                    resp.putString(codec == null ? "" : codec.getName());
+                    resp.putString(hash.getName());
+                    resp.putBoolean(resumed);
+                    channel.respond(msg, resp);
                 }
                 break;
 
@@ -137,6 +259,12 @@ public class Reactor implements Runnable {
                 }
                 break;
 
+            case ProtocolSpec.PING:
+                logger.debugVerbose("REQU: ping");
+                msg.throwIfMore();
+                respondOk();
+                break;
+
             case ProtocolSpec.ERROR_MESSAGE:
                 logger.debugVerbose("REQU: error");
                 String message = msg.getString();
@@ -156,6 +284,13 @@ public class Reactor implements Runnable {
                 }
                 break;
 
+            case ProtocolSpec.PUSH_COMPLETE:
+                logger.debugVerbose("REQU: push complete");
+                msg.throwIfMore();
+                server.pushComplete();
+                respondOk();
+                break;
+
             case ProtocolSpec.SERVER_SYNC_COMPLETE:
                 logger.debugVerbose("REQU: initial sync COMPLETE");
                 int fileSyncCount = msg.getInt();
@@ -172,7 +307,7 @@ public class Reactor implements Runnable {
                 logger.debugVerbose("REQU: fingerprint");
                 try {
                     String path = msg.getString();
-                    String fingerprint = msg.getString();
+                    Fingerprint fingerprint = msg.getFingerprint(channel.getFileHash().getLength());
                     msg.throwIfMore();
                     logger.debugVerbose("fingerprint path=" + path + " fingerprint=" + fingerprint);
                     pathFingerprint(path, fingerprint);
@@ -181,6 +316,54 @@ public class Reactor implements Runnable {
                 }
                 break;
 
+            case ProtocolSpec.PATH_FINGERPRINT_BATCH:
+                logger.debugVerbose("REQU: fingerprint batch");
+                // Hash the local copies in the background, so file writes
+                // queued behind the batch are not held up. Batches are still
+                // processed in the order received, so directories are created
+                // before any files inside them are written.
+                final MessageReader batch = msg.detach();
+                batchLane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            pathFingerprintBatch(batch);
+                        } catch (Exception e) {
+                            try {
+                                respondNotOk(batch, e);
+                            } catch (Exception e2) {
+                                logger.warn(e2);
+                            }
+                        } finally {
+                            batch.release();
+                        }
+                    }
+                });
+                break;
+
+            case ProtocolSpec.DIRECTORY_DIGESTS:
+                logger.debugVerbose("REQU: directory digests");
+                // Also on the batch lane, as working out the digests of a
+                // tree means hashing every file in it.
+                final MessageReader digests = msg.detach();
+                batchLane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            directoryDigests(digests);
+                        } catch (Exception e) {
+                            try {
+                                respondNotOk(digests, e);
+                            } catch (Exception e2) {
+                                logger.warn(e2);
+                            }
+                        } finally {
+                            digests.release();
+                        }
+                    }
+                });
+                break;
+
             case ProtocolSpec.PATH_DELETED:
                 logger.debugVerbose("REQU: delete path");
                 try {
@@ -200,24 +383,80 @@ public class Reactor implements Runnable {
                 logger.debugVerbose("REQU: write file");
                 String path = msg.getString();
                 writeFileCanExecute = msg.getBoolean();
+                writeFileModifiedTime = msg.getLong();
+                writeFileError = null;
 
                 try {
                     modifiedFileLog.startingToWrite(path);
                     writeFileName = pathResolver.clientPathToFile(path);
+                    writeFilePartial = PathResolver.partialFileFor(writeFileName);
                     logger.debug("WriteFile, going to write to " + writeFileName);
-                    writeFileOutputStream = new FileOutputStream(writeFileName, false);
+                    writeFileOutputStream = new FileOutputStream(writeFilePartial, false);
                     writeFileChannel = writeFileOutputStream.getChannel();
                     logger.debugVerbose("File opened for writing");
-                    processWriteMessage(msg);
                 } catch (Exception e) {
-                    respondNotOk(e);
+                    // Keep consuming the file data so the sender is not left
+                    // waiting for credit. The error is reported at the end.
+                    writeFileError = e;
                 }
+                processWriteMessage(msg);
                 break;
 
             case ProtocolSpec.MORE_DATA:
                 processWriteMessage(msg);
                 break;
 
+            case ProtocolSpec.WRITE_DELTA:
+                logger.debugVerbose("REQU: write delta");
+                String deltaPath = msg.getString();
+                writeFileCanExecute = msg.getBoolean();
+                deltaFingerprint = msg.getFingerprint(channel.getFileHash().getLength());
+                deltaBlockSize = msg.getInt();
+                writeFileError = null;
+
+                try {
+                    modifiedFileLog.startingToWrite(deltaPath);
+                    writeFileName = pathResolver.clientPathToFile(deltaPath);
+                    logger.debug("WriteDelta, going to patch " + writeFileName);
+                    deltaBasisChannel = FileChannel.open(deltaBasisFor(writeFileName).toPath(), StandardOpenOption.READ);
+                    deltaTempFile = PathResolver.tempFileFor(writeFileName);
+                    writeFileOutputStream = new FileOutputStream(deltaTempFile, false);
+                    writeFileChannel = writeFileOutputStream.getChannel();
+                } catch (Exception e) {
+                    writeFileError = e;
+                }
+                processDeltaMessage(msg);
+                break;
+
+            case ProtocolSpec.MORE_DELTA:
+                processDeltaMessage(msg);
+                break;
+
+            case ProtocolSpec.ABORT_WRITE:
+                logger.debugVerbose("REQU: abort write");
+                msg.throwIfMore();
+                abortWrite();
+                break;
+
+            case ProtocolSpec.WRITE_STRIPED:
+                logger.debugVerbose("REQU: write striped");
+                startStripedWrite(msg);
+                break;
+
+            case ProtocolSpec.WRITE_RANGE:
+                processRangeMessage(msg);
+                break;
+
+            case ProtocolSpec.FINISH_STRIPED:
+                logger.debugVerbose("REQU: finish striped");
+                finishStripedWrite(msg);
+                break;
+
+            case ProtocolSpec.WRITE_FILES:
+                logger.debugVerbose("REQU: write files");
+                writeFiles(msg);
+                break;
+
             case ProtocolSpec.CREATE_DIRECTORY:
                 logger.debugVerbose("REQU: create directory");
                 String dir = msg.getString();
@@ -225,6 +464,23 @@ public class Reactor implements Runnable {
                 createDirectory(dir);
                 break;
 
+            case ProtocolSpec.MOVE_PATH:
+                logger.debugVerbose("REQU: move path");
+                try {
+                    String from = msg.getString();
+                    String to = msg.getString();
+                    msg.throwIfMore();
+                    String error = movePath(from, to);
+                    if (error == null) {
+                        respondOk();
+                    } else {
+                        respondNotOk(error);
+                    }
+                } catch (Exception e) {
+                    respondNotOk(e);
+                }
+                break;
+
             default:
                 logger.debugVerbose("RECV: UNKNOWN COMMAND! " + command);
                 System.exit(1);
@@ -259,27 +515,363 @@ public class Reactor implements Runnable {
 
         boolean eof = msg.getBoolean();
         int length = msg.getInt();
-        ByteBuffer copyBuf = msg.getBytes(length);
-        msg.throwIfMore();
 
+        if (msg.hasBody()) {
+            // The file contents follow the message, rather than being in it.
+            msg.throwIfMore();
+            if (msg.getBodyLength() != length) {
+                throw new RuntimeException("Protocol error - expected " + length + " bytes of file contents, got " + msg.getBodyLength());
+            }
+            if (writeFileError == null) {
+                try {
+                    msg.transferBodyTo(writeFileChannel);
+                } catch (Exception e) {
+                    writeFileError = e;
+                }
+            }
+        } else {
+            ByteBuffer copyBuf = msg.getBytes(length);
+            msg.throwIfMore();
+            if (writeFileError == null) {
+                try {
+                    writeAll(writeFileChannel, copyBuf, length);
+                } catch (Exception e) {
+                    writeFileError = e;
+                }
+            }
+        }
+
+        if (!eof) {
+            respondDataAck();
+            return;
+        }
+
+        closeWritingFile();
+        if (writeFileError == null) {
+            respondOk();
+        } else {
+            respondNotOk(writeFileError);
+        }
+    }
+
+    private void closeWritingFile() {
         try {
-            writeAll(writeFileChannel, copyBuf, length);
+            if (writeFileChannel != null) {
+                writeFileChannel.close();
+                writeFileOutputStream.close();
+                if (writeFileError == null) {
+                    writeFilePartial.setExecutable(writeFileCanExecute);
+                    PathResolver.setModifiedTime(writeFilePartial, writeFileModifiedTime);
+                    try {
+                        Files.move(writeFilePartial.toPath(), writeFileName.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(writeFilePartial.toPath(), writeFileName.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (writeFileError == null) {
+                writeFileError = e;
+            }
+        }
+        if (writeFileChannel != null && writeFileError == null) {
+            addToBlobStore(writeFileName);
+        } else if (writeFilePartial != null) {
+            writeFilePartial.delete();
+        }
+        writeFilePartial = null;
+        writeFileChannel = null;
+        writeFileOutputStream = null;
+        modifiedFileLog.writingCompleted();
+    }
+
+    /**
+     * Give up on the file or delta being received, deleting what has been
+     * written of it.
+     */
+    private void abortWrite() throws IOException, ConnectionLost {
+        if (writeFileError == null) {
+            writeFileError = new IOException("Sender could not read all of " + writeFileName);
+        }
+        if (deltaBasisChannel != null || deltaTempFile != null) {
+            closeDeltaFile();
+        } else {
+            closeWritingFile();
+        }
+        respondNotOk(writeFileError);
+    }
+
+    /**
+     * Apply the delta operations in the message to the temporary file, then
+     * once the END operation arrives check the result and move it into place.
+     */
+    private void processDeltaMessage(MessageReader msg) throws IOException, ConnectionLost {
+
+        boolean end = false;
+        while (msg.hasMore() && !end) {
+            byte op = msg.getByte();
+            switch (op) {
+            case FileDelta.LITERAL:
+                int length = msg.getInt();
+                ByteBuffer data = msg.getBytes(length);
+                if (writeFileError == null) {
+                    try {
+                        writeAll(writeFileChannel, data, length);
+                    } catch (Exception e) {
+                        writeFileError = e;
+                    }
+                }
+                break;
+
+            case FileDelta.COPY:
+                int firstBlock = msg.getInt();
+                int blockCount = msg.getInt();
+                if (writeFileError == null) {
+                    try {
+                        copyBlocks(firstBlock, blockCount);
+                    } catch (Exception e) {
+                        writeFileError = e;
+                    }
+                }
+                break;
+
+            case FileDelta.END:
+                end = true;
+                break;
+
+            default:
+                throw new RuntimeException("Unknown delta operation " + op);
+            }
+        }
+        msg.throwIfMore();
+
+        if (!end) {
+            respondDataAck();
+            return;
+        }
+
+        closeDeltaFile();
+        if (writeFileError == null) {
             respondOk();
+        } else {
+            respondNotOk(writeFileError);
+        }
+    }
+
+    /**
+     * Create the temporary file the ranges of a striped write are written to.
+     */
+    private void startStripedWrite(MessageReader msg) throws IOException, ConnectionLost {
+        String path = msg.getString();
+        boolean canExecute = msg.getBoolean();
+        long modifiedTime = msg.getLong();
+        long transferId = msg.getLong();
+        long size = msg.getLong();
+        msg.throwIfMore();
+
+        modifiedFileLog.startingToWrite(path);
+        try {
+            File file = pathResolver.clientPathToFile(path);
+            logger.debug("WriteStriped, going to write " + size + " bytes to " + file);
+            StripedWrite.start(channel.getMultiplexer(), transferId, file, canExecute, modifiedTime, size);
         } catch (Exception e) {
+            modifiedFileLog.writingCompleted();
             respondNotOk(e);
+            return;
         }
+        respondOk();
+    }
 
-        if (eof) {
-            closeWritingFile();
+    /**
+     * Write a chunk of a striped write at its position in the temporary file.
+     * Errors are held back until the last chunk of the range, as for
+     * WRITE-FILE.
+     */
+    private void processRangeMessage(MessageReader msg) throws IOException, ConnectionLost {
+        long transferId = msg.getLong();
+        long position = msg.getLong();
+        boolean last = msg.getBoolean();
+        int length = msg.getInt();
+        StripedWrite striped = StripedWrite.get(channel.getMultiplexer(), transferId);
+
+        if (msg.hasBody()) {
+            msg.throwIfMore();
+            if (msg.getBodyLength() != length) {
+                throw new RuntimeException("Protocol error - expected " + length + " bytes of file contents, got " + msg.getBodyLength());
+            }
+            if (striped != null && striped.getError() == null) {
+                try {
+                    striped.write(msg, position);
+                } catch (Exception e) {
+                    striped.failed(e);
+                }
+            }
+        } else {
+            ByteBuffer data = msg.getBytes(length);
+            msg.throwIfMore();
+            if (striped != null && striped.getError() == null) {
+                try {
+                    striped.write(data, position);
+                } catch (Exception e) {
+                    striped.failed(e);
+                }
+            }
+        }
+
+        if (!last) {
+            respondDataAck();
+        } else if (striped == null) {
+            respondNotOk("Unknown striped write " + transferId);
+        } else if (striped.getError() != null) {
+            respondNotOk(striped.getError());
+        } else {
+            respondOk();
+        }
+    }
+
+    /**
+     * All ranges of a striped write have been sent, so move the file into
+     * place if all of it arrived.
+     */
+    private void finishStripedWrite(MessageReader msg) throws IOException, ConnectionLost {
+        long transferId = msg.getLong();
+        msg.throwIfMore();
+
+        StripedWrite striped = StripedWrite.remove(channel.getMultiplexer(), transferId);
+        Exception error = striped == null ? new IOException("Unknown striped write " + transferId) : striped.finish();
+        modifiedFileLog.writingCompleted();
+        if (error == null) {
+            addToBlobStore(striped.getTarget());
+            respondOk();
+        } else {
+            respondNotOk(error);
+        }
+    }
+
+    /**
+     * Create the directories and write the files of a WRITE-FILES request in
+     * order, carrying on past any that fail.
+     */
+    private void writeFiles(MessageReader msg) throws IOException, ConnectionLost {
+        int count = msg.getInt();
+        StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            boolean isDirectory = msg.getBoolean();
+            String path = msg.getString();
+            String error;
+            if (isDirectory) {
+                logger.debugVerbose("write files directory path=" + path);
+                error = makeDirectory(path);
+            } else {
+                boolean canExecute = msg.getBoolean();
+                long modifiedTime = msg.getLong();
+                int length = msg.getInt();
+                ByteBuffer contents = msg.getBytes(length);
+                logger.debugVerbose("write files path=" + path + " bytes=" + length);
+                error = writeSmallFile(path, canExecute, modifiedTime, contents);
+            }
+            if (error != null) {
+                if (errors.length() > 0) {
+                    errors.append('\n');
+                }
+                errors.append(error);
+            }
+        }
+        msg.throwIfMore();
+
+        if (errors.length() == 0) {
+            respondOk();
+        } else {
+            respondNotOk(errors.toString());
+        }
+    }
+
+    /**
+     * Write a file from a WRITE-FILES request to a temporary file, then move
+     * it into place so it is never seen half written. Returns an error
+     * message on failure or null on success.
+     */
+    private String writeSmallFile(String path, boolean canExecute, long modifiedTime, ByteBuffer contents) {
+        modifiedFileLog.startingToWrite(path);
+        File file = pathResolver.clientPathToFile(path);
+        File tempFile = PathResolver.tempFileFor(file);
+        try {
+            try (FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (contents.hasRemaining()) {
+                    out.write(contents);
+                }
+            }
+            tempFile.setExecutable(canExecute);
+            PathResolver.setModifiedTime(tempFile, modifiedTime);
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            addToBlobStore(file);
+            return null;
+        } catch (IOException e) {
+            tempFile.delete();
+            return "Failed to write " + path + ": " + e.getMessage();
+        } finally {
+            modifiedFileLog.writingCompleted();
         }
     }
 
-    private void closeWritingFile() throws IOException {
-        writeFileChannel.close();
-        writeFileOutputStream.close();
-        if (writeFileCanExecute) {
-            writeFileName.setExecutable(true);
+    private void copyBlocks(int firstBlock, int blockCount) throws IOException {
+        long position = (long) firstBlock * deltaBlockSize;
+        long remaining = Math.min((long) blockCount * deltaBlockSize, deltaBasisChannel.size() - position);
+        while (remaining > 0) {
+            long copied = deltaBasisChannel.transferTo(position, remaining, writeFileChannel);
+            if (copied <= 0) {
+                throw new IOException("Existing copy of " + writeFileName + " is shorter than expected");
+            }
+            position += copied;
+            remaining -= copied;
+        }
+    }
+
+    /**
+     * Close the rebuilt file and, if it matches the sender's fingerprint,
+     * move it over the top of the old copy.
+     */
+    private void closeDeltaFile() {
+        try {
+            if (deltaBasisChannel != null) {
+                deltaBasisChannel.close();
+            }
+            if (writeFileChannel != null) {
+                writeFileChannel.close();
+                writeFileOutputStream.close();
+            }
+            if (writeFileError == null) {
+                deltaTempFile.setExecutable(writeFileCanExecute);
+                Fingerprint fingerprint = PathResolver.fingerprint(deltaTempFile, channel.getFileHash());
+                if (!fingerprint.equals(deltaFingerprint)) {
+                    throw new IOException("Rebuilt file " + writeFileName + " does not match fingerprint");
+                }
+                PathResolver.setModifiedTime(deltaTempFile, deltaFingerprint.getModifiedTime());
+                try {
+                    Files.move(deltaTempFile.toPath(), writeFileName.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(deltaTempFile.toPath(), writeFileName.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (Exception e) {
+            if (writeFileError == null) {
+                writeFileError = e;
+            }
         }
+        if (writeFileError != null && deltaTempFile != null) {
+            deltaTempFile.delete();
+        } else if (writeFileError == null) {
+            PathResolver.partialFileFor(writeFileName).delete();
+            addToBlobStore(writeFileName);
+        }
+        deltaBasisChannel = null;
+        deltaTempFile = null;
+        writeFileChannel = null;
+        writeFileOutputStream = null;
         modifiedFileLog.writingCompleted();
     }
 
@@ -304,41 +896,74 @@ public class Reactor implements Runnable {
             });
 
         } else {
-            try {
-                Files.delete(localPath.toPath());
-            } catch (NoSuchFileException e) {
-                // Ignore 'no such file' exceptions.
-                // In 'sync' mode both server and client might bounce
-                // delete message back to original source.
-            }
+            // Kept for a while in case the file was renamed.
+            // A missing file is not an error: in 'sync' mode both server
+            // and client might bounce delete message back to original source.
+            recentlyDeleted.delete(localPath);
+            // Along with any transfer of it cut off by a lost connection.
+            Files.deleteIfExists(PathResolver.partialFileFor(localPath).toPath());
         }
         return true;
     }
 
-    private void pathFingerprint(final String path, final String remoteFingerprint) throws IOException, ConnectionLost {
-        File localPath = pathResolver.clientPathToFile(path);
-        logger.debugVerbose(". fingerprint " + path + " => " + localPath);
-        if (localPath.exists()) {
-            if (localPath.isDirectory()) {
-                if (server != null) {
-                    try {
-                        respondNotOk("Cannot sync " + path + " as one is file, other is directory");
-                        return;
-                    } catch (IOException e) {
-                        respondNotOk(e);
-                        return;
-                    }
-                } else {
-                    respondNotOk("Cannot sync " + path + " as one is file, other is directory");
-                    return;
-                }
-            } else {
-                String localFingerprint = PathResolver.fingerprint(localPath);
-                if (localFingerprint.equals(remoteFingerprint)) {
-                    logger.debugVerbose(". fingerprints match - do not copy " + path);
-                    respondOk();
-                    return;
-                }
+    /**
+     * Rename a file or directory, returning an error message on failure or
+     * null on success. In 'sync' mode the other end may echo back a move we
+     * made, so a path already moved is not an error.
+     */
+    private String movePath(String from, String to) throws IOException {
+        Path source = pathResolver.clientPathToFile(from).toPath();
+        Path target = pathResolver.clientPathToFile(to).toPath();
+        if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+            return Files.exists(target, LinkOption.NOFOLLOW_LINKS) ? null : "Unable to move " + from + " as it does not exist.";
+        }
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            return "Unable to move " + from + " as " + to + " already exists.";
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target);
+        }
+        modifiedFileLog.modified(to);
+        return null;
+    }
+
+    private void pathFingerprint(final String path, final Fingerprint remoteFingerprint) throws IOException, ConnectionLost {
+        try {
+            if (fingerprintMatches(path, remoteFingerprint)) {
+                logger.debugVerbose(". fingerprints match - do not copy " + path);
+                respondOk();
+                return;
+            }
+            if (fromBlobStore(path, remoteFingerprint.canExecute(), remoteFingerprint.getModifiedTime(), ByteBuffer.wrap(remoteFingerprint.getDigest()))) {
+                respondOk();
+                return;
+            }
+            if (fromRecentlyDeleted(path, remoteFingerprint)) {
+                respondOk();
+                return;
+            }
+        } catch (SyncConflict e) {
+            respondNotOk(e.getMessage());
+            return;
+        }
+
+        // The file is different - if our copy (or what arrived of it before
+        // the connection was lost) is big enough, ask for just the differences.
+        File basis = deltaBasisFor(pathResolver.clientPathToFile(path));
+        if (FileDelta.canUseDelta(basis)) {
+            logger.debugVerbose("RESP: SEND-ME-DELTA: " + path);
+            try {
+                MessageWriter msg = new MessageWriter();
+                msg.putByte(ProtocolSpec.SEND_ME_DELTA);
+                msg.putString(path);
+                FileDelta.signatures(basis).writeTo(msg);
+                channel.respond(request, msg);
+                return;
+            } catch (IOException e) {
+                // Fall through and ask for the whole file.
+                logger.debug(e);
             }
         }
 
@@ -349,27 +974,273 @@ public class Reactor implements Runnable {
             MessageWriter msg = new MessageWriter();
             msg.putByte(ProtocolSpec.SEND_ME_FILE);
             msg.putString(path);
-            channel.send(msg);
+            channel.respond(request, msg);
         } catch (IOException e) {
             respondNotOk(e);
         }
     }
 
+    /**
+     * Work through a batch of fingerprints and directories in order, then
+     * send back a single response listing the files we need a copy of.
+     */
+    private void pathFingerprintBatch(MessageReader msg) throws IOException, ConnectionLost {
+        int count = msg.getInt();
+        List<Integer> sendMe = new ArrayList<>();
+        List<Boolean> canPatch = new ArrayList<>();
+        List<Integer> errorIndexes = new ArrayList<>();
+        List<String> errorMessages = new ArrayList<>();
+        int digestLength = channel.getFileHash().getLength();
+        for (int i = 0; i < count; i++) {
+            boolean isDirectory = msg.getBoolean();
+            String path = msg.getString();
+            try {
+                if (isDirectory) {
+                    logger.debugVerbose("batch directory path=" + path);
+                    String error = makeDirectory(path);
+                    if (error != null) {
+                        errorIndexes.add(i);
+                        errorMessages.add(error);
+                    }
+                } else {
+                    // Compared in place rather than copied out of the message.
+                    boolean canExecute = msg.getBoolean();
+                    ByteBuffer digest = msg.getBytes(digestLength);
+                    long size = msg.getLong();
+                    long modifiedTime = msg.getLong();
+                    if (logger.isDebugVerbose()) {
+                        byte[] copy = new byte[digestLength];
+                        digest.duplicate().get(copy);
+                        logger.debugVerbose("batch fingerprint path=" + path + " fingerprint=" + new Fingerprint(canExecute, copy, size, modifiedTime));
+                    }
+                    if (!fingerprintMatches(path, canExecute, size, modifiedTime, digest)
+                            && !fromBlobStore(path, canExecute, modifiedTime, digest)) {
+                        logger.debugVerbose(". fingerprints don't match - REQUEST A COPY " + path);
+                        sendMe.add(i);
+                        canPatch.add(FileDelta.canUseDelta(deltaBasisFor(pathResolver.clientPathToFile(path))));
+                    }
+                }
+            } catch (SyncConflict e) {
+                errorIndexes.add(i);
+                errorMessages.add(e.getMessage());
+            }
+        }
+        msg.throwIfMore();
+
+        logger.debugVerbose("RESP: SEND-ME-FILES: " + sendMe.size() + " of " + count);
+        MessageWriter resp = new MessageWriter();
+        resp.putByte(ProtocolSpec.SEND_ME_FILES);
+        resp.putInt(sendMe.size());
+        for (int i = 0; i < sendMe.size(); i++) {
+            resp.putInt(sendMe.get(i));
+            resp.putBoolean(canPatch.get(i));
+        }
+        resp.putInt(errorIndexes.size());
+        for (int i = 0; i < errorIndexes.size(); i++) {
+            resp.putInt(errorIndexes.get(i));
+            resp.putString(errorMessages.get(i));
+        }
+        channel.respond(msg, resp);
+    }
+
+    /**
+     * Compare directory digests with the local copies. The digests of a whole
+     * tree are worked out when its top directory is requested, before any
+     * files of the walk have been written, and reused as the walk descends.
+     */
+    private void directoryDigests(MessageReader msg) throws IOException, ConnectionLost {
+        boolean restart = msg.getBoolean();
+        int excludeCount = msg.getInt();
+        List<String> exclude = new ArrayList<>();
+        for (int i = 0; i < excludeCount; i++) {
+            exclude.add(msg.getString());
+        }
+        if (restart) {
+            directoryDigests.clear();
+        }
+        int count = msg.getInt();
+        List<Integer> differ = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String path = msg.getString();
+            ByteBuffer digest = msg.getBytes(channel.getFileHash().getLength());
+            byte[] localDigest = directoryDigests.get(path);
+            if (localDigest == null) {
+                localDigest = DirectoryDigest.compute(path, exclude, pathResolver, channel.getFileHash(), channel.isParanoid(), directoryDigests);
+            }
+            if (localDigest == null || !ByteBuffer.wrap(localDigest).equals(digest)) {
+                logger.debugVerbose("directory differs path=" + path);
+                differ.add(i);
+            }
+        }
+        msg.throwIfMore();
+
+        logger.debugVerbose("RESP: DIGESTS-DIFFER: " + differ.size() + " of " + count);
+        MessageWriter resp = new MessageWriter();
+        resp.putByte(ProtocolSpec.DIGESTS_DIFFER);
+        resp.putInt(differ.size());
+        for (int index : differ) {
+            resp.putInt(index);
+        }
+        channel.respond(msg, resp);
+    }
+
+    /**
+     * Returns true if the local copy of the path already has the specified
+     * fingerprint, false if a copy of the file is needed.
+     */
+    private boolean fingerprintMatches(String path, Fingerprint remoteFingerprint) throws SyncConflict {
+        return fingerprintMatches(path, remoteFingerprint.canExecute(), remoteFingerprint.getSize(), remoteFingerprint.getModifiedTime(), ByteBuffer.wrap(remoteFingerprint.getDigest()));
+    }
+
+    /**
+     * As above, for a fingerprint still in a message buffer. The local copy
+     * is only hashed if its size or modification time differ, or in paranoid
+     * mode.
+     */
+    private boolean fingerprintMatches(String path, boolean remoteCanExecute, long remoteSize, long remoteModifiedTime, ByteBuffer remoteDigest) throws SyncConflict {
+        File localPath = localFile(path);
+        if (localPath == null) {
+            return false;
+        }
+        if (!channel.isParanoid()
+                && remoteModifiedTime != PathResolver.UNKNOWN_MODIFIED_TIME
+                && localPath.canExecute() == remoteCanExecute
+                && localPath.length() == remoteSize
+                && PathResolver.stableModifiedTime(localPath) == remoteModifiedTime) {
+            logger.debugVerbose(". size and time match " + path);
+            return true;
+        }
+        Fingerprint localFingerprint = PathResolver.fingerprint(localPath, channel.getFileHash());
+        if (!localFingerprint.matches(remoteCanExecute, remoteDigest)) {
+            return false;
+        }
+        long localModifiedTime = localFingerprint.getModifiedTime();
+        if (localModifiedTime != remoteModifiedTime
+                && localModifiedTime != PathResolver.UNKNOWN_MODIFIED_TIME
+                && localModifiedTime == localPath.lastModified()
+                && !BlobStore.isShared(localPath)) {
+            // Same contents, and not changed since hashed, so take on the
+            // other end's time for the comparison to be cheap next time.
+            // Recorded as our change so the file watcher does not send it
+            // back.
+            modifiedFileLog.modified(path);
+            PathResolver.setModifiedTime(localPath, remoteModifiedTime);
+        }
+        return true;
+    }
+
+    /**
+     * The file to base a delta on: what is left of an interrupted WRITE-FILE
+     * if that holds more than the local copy, otherwise the local copy.
+     */
+    private static File deltaBasisFor(File localPath) {
+        File partial = PathResolver.partialFileFor(localPath);
+        if (partial.isFile() && (!localPath.isFile() || partial.length() > localPath.length())) {
+            return partial;
+        }
+        return localPath;
+    }
+
+    /**
+     * Create the file from one with the same contents deleted moments ago,
+     * if there is one, as it was most likely renamed.
+     */
+    private boolean fromRecentlyDeleted(String path, Fingerprint fingerprint) {
+        if (recentlyDeleted.restore(fingerprint, channel.getFileHash(), pathResolver.clientPathToFile(path))) {
+            logger.debugVerbose(". renamed from a deleted file " + path);
+            modifiedFileLog.modified(path);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Create the local copy of a file from the blob store, if there is one
+     * holding it, rather than asking for it to be sent. Returns true if the
+     * file was created.
+     */
+    private boolean fromBlobStore(String path, boolean canExecute, long modifiedTime, ByteBuffer digest) {
+        BlobStore store = BlobStore.getInstance();
+        if (store == null) {
+            return false;
+        }
+        byte[] bytes = new byte[digest.remaining()];
+        digest.duplicate().get(bytes);
+        if (!store.materialize(channel.getFileHash(), bytes, canExecute, modifiedTime, pathResolver.clientPathToFile(path))) {
+            return false;
+        }
+        modifiedFileLog.modified(path);
+        return true;
+    }
+
+    /**
+     * Offer a file just written to the blob store, if there is one.
+     */
+    private void addToBlobStore(File file) {
+        BlobStore store = BlobStore.getInstance();
+        if (store != null) {
+            store.add(file, channel.getFileHash());
+        }
+    }
+
+    /**
+     * The local copy of the path, or null if there is no local copy.
+     */
+    private File localFile(String path) throws SyncConflict {
+        File localPath = pathResolver.clientPathToFile(path);
+        if (logger.isDebugVerbose()) {
+            logger.debugVerbose(". fingerprint " + path + " => " + localPath);
+        }
+        if (!localPath.exists()) {
+            return null;
+        }
+        if (localPath.isDirectory()) {
+            throw new SyncConflict("Cannot sync " + path + " as one is file, other is directory");
+        }
+        return localPath;
+    }
+
     private void createDirectory(String path) throws IOException, ConnectionLost {
+        String error = makeDirectory(path);
+        if (error == null) {
+            respondOk();
+        } else {
+            respondNotOk(error);
+        }
+    }
+
+    /**
+     * Create the directory if it does not exist, returning an error message
+     * on failure or null on success.
+     */
+    private String makeDirectory(String path) {
         File f = pathResolver.clientPathToFile(path);
         if (f.isDirectory()) {
             // Already exists as directory
-            respondOk();
+            return null;
         } else if (f.exists()) {
             // Path exists, but as a file!
-            respondNotOk("Unable to sync directory " + path + " as it already exists as a file.");
+            return "Unable to sync directory " + path + " as it already exists as a file.";
+        } else if (f.mkdir()) {
+            // So the file watcher does not send it straight back.
+            modifiedFileLog.modified(path);
+            return null;
         } else {
-            if (f.mkdir()) {
-                respondOk();
-            } else {
-                // Mkdir failed!
-                respondNotOk("Failed to create directory " + path);
-            }
+            // Mkdir failed!
+            return "Failed to create directory " + path;
+        }
+    }
+
+    /**
+     * A path cannot be synced because it is a file on one endpoint and a
+     * directory on the other.
+     */
+    private static class SyncConflict extends Exception {
+
+        private static final long serialVersionUID = 2931706328160413373L;
+
+        public SyncConflict(String message) {
+            super(message);
         }
     }
 
@@ -377,7 +1248,14 @@ public class Reactor implements Runnable {
         logger.debugVerbose("RESP: OK");
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.OK);
-        channel.send(msg);
+        channel.respond(request, msg);
+    }
+
+    private void respondDataAck() throws IOException, ConnectionLost {
+        logger.debugVerbose("RESP: DATA_ACK");
+        MessageWriter msg = new MessageWriter();
+        msg.putByte(ProtocolSpec.DATA_ACK);
+        channel.respond(request, msg);
     }
 
     private void respondNotOk(String message) throws IOException, ConnectionLost {
@@ -385,15 +1263,19 @@ public class Reactor implements Runnable {
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.NOT_OK);
         msg.putString(message);
-        channel.send(msg);
+        channel.respond(request, msg);
     }
 
     private void respondNotOk(Exception e) throws IOException, ConnectionLost {
+        respondNotOk(request, e);
+    }
+
+    private void respondNotOk(MessageReader request, Exception e) throws IOException, ConnectionLost {
         logger.debugVerbose("RESP: NOT_OK: (internal error) " + e.getMessage());
         e.printStackTrace();
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.NOT_OK);
         msg.putString(e.getMessage());
-        channel.send(msg);
+        channel.respond(request, msg);
     }
 }
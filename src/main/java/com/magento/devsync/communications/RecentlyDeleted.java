@@ -0,0 +1,138 @@
+package com.magento.devsync.communications;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files deleted at the request of the other endpoint, kept for a few
+ * seconds in case the delete was half of a rename. The watcher at the other
+ * end sees a file renamed or moved as a delete followed by a create, and
+ * while a delete is recent sends the new file as a fingerprint rather than
+ * its contents. If a kept file has the same digest it is moved into place
+ * instead of the file being sent again.
+ * <p>
+ * Kept files are temporary files in the directory they were deleted from,
+ * so moving one back is a rename. They are only hashed when a file of the
+ * same size is looked for.
+ */
+public class RecentlyDeleted {
+
+    /**
+     * How long deleted files are kept.
+     */
+    public static final long KEEP_MILLIS = 5000;
+
+    private static final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Recently-Deleted");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static class Kept {
+        private final File file;
+        private final long size;
+
+        private Kept(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private List<Kept> kept = new ArrayList<>();
+
+    /**
+     * Delete a file, keeping its contents for a while. Returns false if
+     * there was no such file.
+     */
+    public boolean delete(File file) throws IOException {
+        if (!Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return Files.deleteIfExists(file.toPath());
+        }
+        final Kept k = new Kept(new File(file.getParentFile(), PathResolver.TEMP_FILE_PREFIX + file.getName() + ".deleted"), file.length());
+        synchronized (this) {
+            forget(k.file);
+            move(file, k.file);
+            kept.add(k);
+        }
+        expiry.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RecentlyDeleted.this) {
+                    if (kept.remove(k)) {
+                        k.file.delete();
+                    }
+                }
+            }
+        }, KEEP_MILLIS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Move a kept file with the fingerprint's contents to the target path.
+     * Returns false if there is no such file.
+     */
+    public synchronized boolean restore(Fingerprint fingerprint, FileHash hash, File target) {
+        Iterator<Kept> it = kept.iterator();
+        while (it.hasNext()) {
+            Kept k = it.next();
+            if (k.size != fingerprint.getSize()) {
+                continue;
+            }
+            boolean matches;
+            try {
+                matches = Arrays.equals(PathResolver.fingerprint(k.file, hash).getDigest(), fingerprint.getDigest());
+            } catch (RuntimeException e) {
+                // Deleted along with its directory.
+                it.remove();
+                continue;
+            }
+            FingerprintCache.invalidate(k.file);
+            if (!matches) {
+                continue;
+            }
+            it.remove();
+            try {
+                k.file.setExecutable(fingerprint.canExecute());
+                PathResolver.setModifiedTime(k.file, fingerprint.getModifiedTime());
+                move(k.file, target);
+                return true;
+            } catch (IOException e) {
+                k.file.delete();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void forget(File file) {
+        Iterator<Kept> it = kept.iterator();
+        while (it.hasNext()) {
+            if (it.next().file.equals(file)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
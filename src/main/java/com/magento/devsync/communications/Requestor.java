@@ -1,32 +1,178 @@
 package com.magento.devsync.communications;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.magento.devsync.config.YamlFile;
 
 /**
  * Serializes a request and sends it over the network connection to the other endpoint.
  * Used for sending both client->server and server->client requests.
+ * <p>
+ * Responses are matched to requests by request id, so the methods ending in
+ * "Async" return as soon as the request has been sent, leaving the caller
+ * free to send more requests before collecting the result with await().
  */
 public class Requestor {
 
+    /**
+     * Size of each WRITE-FILE/MORE-DATA chunk.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Number of file chunks that may be sent before waiting for a DATA-ACK.
+     */
+    private static final int WRITE_WINDOW = 4;
+
+    private static Random transferIds = new Random();
+
     private Logger logger;
     private Channel channel;
+    private List<Requestor> stripes;
+    private boolean sessionResumed = false;
 
     public Requestor(Channel channel, Logger logger) {
         this.channel = channel;
         this.logger = logger;
     }
 
-    public boolean checkProtocolVersion(int version) throws IOException, ConnectionLost {
+    /**
+     * Set the requestors of the stripe channels that large files are sent
+     * over in parallel (see StripedWrite).
+     */
+    public void setStripes(List<Requestor> stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * The algorithm files are fingerprinted with, once negotiated.
+     */
+    public FileHash getFileHash() {
+        return channel.getFileHash();
+    }
+
+    /**
+     * True if files must be compared by fingerprint even when their size and
+     * modification time match.
+     */
+    public boolean isParanoid() {
+        return channel.isParanoid();
+    }
+
+    /**
+     * True if the server still had the session named in the protocol version
+     * check, so only the changes made while disconnected need syncing.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    /**
+     * Returns true once the connection has been lost.
+     */
+    public boolean isClosed() {
+        return channel.isClosed();
+    }
+
+    /**
+     * Shut down the connection, such as when the other end has stopped
+     * answering pings.
+     */
+    public void close() {
+        channel.close();
+    }
+
+    /**
+     * Wait for the result of a request sent by one of the async methods.
+     */
+    public static <T> T await(Future<T> result) throws ConnectionLost {
+        while (true) {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                // Ignore
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ConnectionLost) {
+                    throw (ConnectionLost) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new ConnectionLost(e);
+            }
+        }
+    }
+
+    /**
+     * Check the other end is running the same protocol version, and agree
+     * which of the listed codecs (if any) to compress frames with and which
+     * of the listed hashes to fingerprint files with. In paranoid mode both
+     * ends hash files rather than trusting matching sizes and times. The
+     * session token lets the server recognize a client reconnecting.
+     */
+    public boolean checkProtocolVersion(int version, List<String> codecNames, List<String> hashNames, boolean paranoid, String sessionToken) throws IOException, ConnectionLost {
         logger.debugVerbose("SEND: Check protocol version");
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.CHECK_PROTOCOL_VERSION);
         msg.putInt(version);
-        channel.send(msg);
-        return receiveOkOrNotOk();
+        msg.putInt(codecNames.size());
+        for (String name : codecNames) {
+            msg.putString(name);
+        }
+        msg.putInt(hashNames.size());
+        for (String name : hashNames) {
+            msg.putString(name);
+        }
+        msg.putBoolean(paranoid);
+        msg.putString(sessionToken);
+
+        MessageReader resp = await(channel.request(msg));
+        try {
+            int cmd = resp.getByte();
+            if (cmd == ProtocolSpec.OK) {
+                String codecName = resp.getString();
+                String hashName = resp.getString();
+                sessionResumed = resp.getBoolean();
+                resp.throwIfMore();
+                logger.debugVerbose("RECV: OK: compression=" + (codecName.isEmpty() ? "none" : codecName) + " hash=" + hashName + (sessionResumed ? " resumed" : ""));
+                channel.setCodec(FrameCodecs.byName(codecName));
+                FileHash hash = FileHashes.byName(hashName);
+                if (hash == null) {
+                    throw new RuntimeException("Protocol error - server chose unknown hash " + hashName);
+                }
+                channel.setFileHash(hash);
+                channel.setParanoid(paranoid);
+                return true;
+            }
+            if (cmd == ProtocolSpec.NOT_OK) {
+                String errorMessage = resp.getString();
+                logger.debugVerbose("RECV: NOT-OK: " + errorMessage);
+                System.err.println(errorMessage);
+                return false;
+            }
+            throw new RuntimeException("Protocol error!");
+        } finally {
+            resp.release();
+        }
     }
 
     public boolean setConfig(YamlFile config) throws IOException, ConnectionLost {
@@ -34,8 +180,14 @@ public class Requestor {
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.SET_CONFIG);
         msg.putString(config.contents);
-        channel.send(msg);
-        return receiveOkOrNotOk();
+        return await(new OkResponse(channel.request(msg)));
+    }
+
+    public Future<Boolean> pingAsync() throws IOException, ConnectionLost {
+        logger.debugVerbose("SEND: Ping");
+        MessageWriter msg = new MessageWriter();
+        msg.putByte(ProtocolSpec.PING);
+        return new OkResponse(channel.request(msg));
     }
 
     public boolean errorMessage(String message) throws IOException, ConnectionLost {
@@ -43,24 +195,28 @@ public class Requestor {
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.ERROR_MESSAGE);
         msg.putString(message);
-        channel.send(msg);
-        return receiveOkOrNotOk();
+        return await(new OkResponse(channel.request(msg)));
     }
 
     public boolean initializeProject() throws IOException, ConnectionLost {
         logger.debugVerbose("SEND: Initialize project");
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.INITIALIZE_PROJECT);
-        channel.send(msg);
-        return receiveOkOrNotOk();
+        return await(new OkResponse(channel.request(msg)));
     }
 
     public boolean initialSync() throws IOException, ConnectionLost {
         logger.debugVerbose("SEND: Trigger server initial sync");
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.START_SERVER_SYNC);
-        channel.send(msg);
-        return receiveOkOrNotOk();
+        return await(new OkResponse(channel.request(msg)));
+    }
+
+    public boolean pushComplete() throws IOException, ConnectionLost {
+        logger.debugVerbose("SEND: Push complete");
+        MessageWriter msg = new MessageWriter();
+        msg.putByte(ProtocolSpec.PUSH_COMPLETE);
+        return await(new OkResponse(channel.request(msg)));
     }
 
     public boolean syncComplete(int syncFileCount) throws IOException, ConnectionLost {
@@ -68,124 +224,742 @@ public class Requestor {
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.SERVER_SYNC_COMPLETE);
         msg.putInt(syncFileCount);
-        channel.send(msg);
-        return receiveOkOrNotOk();
+        return await(new OkResponse(channel.request(msg)));
     }
 
-    public boolean pathFingerprint(String path, boolean canExecute, File contents, String fingerprint) throws IOException, ConnectionLost {
+    public boolean pathFingerprint(String path, boolean canExecute, File contents, Fingerprint fingerprint) throws IOException, ConnectionLost {
         logger.debugVerbose("SEND: Fingerprint: " + path + " " + fingerprint);
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.PATH_FINGERPRINT);
         msg.putString(path);
-        msg.putString(fingerprint);
-        channel.send(msg);
-
-        MessageReader resp = channel.receive();
-        switch (resp.getByte()) {
-        case ProtocolSpec.SEND_ME_FILE:
-            logger.debugVerbose("RECV: SEND_ME_FILE: Write file to disk: " + path + " " + (canExecute ? "exe" : "plain"));
-            return writeFile(path, canExecute, contents);
-        
-        case ProtocolSpec.OK: 
-            logger.debugVerbose("RECV: OK");
-            return true;
-        
-        case ProtocolSpec.NOT_OK: 
-            logger.debugVerbose("RECV: NOT-OK");
-            return false;
-        
-        default: 
-            logger.debugVerbose("RECV: <unexpected-response>");
+        msg.putFingerprint(fingerprint);
+
+        FileDelta.Signatures signatures = null;
+        MessageReader resp = await(channel.request(msg));
+        try {
+            switch (resp.getByte()) {
+            case ProtocolSpec.SEND_ME_FILE:
+                logger.debugVerbose("RECV: SEND_ME_FILE: Write file to disk: " + path + " " + (canExecute ? "exe" : "plain"));
+                break;
+
+            case ProtocolSpec.SEND_ME_DELTA:
+                logger.debugVerbose("RECV: SEND_ME_DELTA: " + path);
+                resp.getString();
+                signatures = FileDelta.Signatures.readFrom(resp);
+                resp.throwIfMore();
+                break;
+
+            case ProtocolSpec.OK:
+                logger.debugVerbose("RECV: OK");
+                return true;
+
+            case ProtocolSpec.NOT_OK:
+                logger.debugVerbose("RECV: NOT-OK");
+                return false;
+
+            default:
+                logger.debugVerbose("RECV: <unexpected-response>");
+                throw new RuntimeException("Protocol error");
+            }
+        } finally {
+            resp.release();
+        }
+
+        if (signatures != null) {
+            return writeDelta(path, canExecute, contents, fingerprint, signatures);
+        }
+        return await(writeFileAsync(path, canExecute, contents));
+    }
+
+    /**
+     * Send a batch of fingerprints without waiting for the response, so the
+     * caller can keep several batches in flight. Getting the result (also
+     * available from the batch) records in the batch which files need to be
+     * sent, and returns false if any paths could not be synced.
+     */
+    public Future<Boolean> sendPathFingerprints(final FingerprintBatch batch) throws IOException, ConnectionLost {
+        logger.debugVerbose("SEND: Fingerprint batch: " + batch.getEntries().size() + " paths");
+        MessageWriter msg = new MessageWriter();
+        msg.putByte(ProtocolSpec.PATH_FINGERPRINT_BATCH);
+        msg.putInt(batch.getEntries().size());
+        for (FingerprintBatch.Entry e : batch.getEntries()) {
+            msg.putBoolean(e.isDirectory);
+            msg.putString(e.path);
+            if (!e.isDirectory) {
+                msg.putFingerprint(e.fingerprint);
+            }
+        }
+
+        Future<Boolean> result = new Response<Boolean>(channel.request(msg)) {
+            @Override
+            protected Boolean decode(MessageReader resp) {
+                switch (resp.getByte()) {
+                case ProtocolSpec.SEND_ME_FILES:
+                    int sendCount = resp.getInt();
+                    for (int i = 0; i < sendCount; i++) {
+                        int index = resp.getInt();
+                        batch.sendMe(index, resp.getBoolean());
+                    }
+                    int errorCount = resp.getInt();
+                    for (int i = 0; i < errorCount; i++) {
+                        int index = resp.getInt();
+                        String errorMessage = resp.getString();
+                        logger.warn(batch.getEntries().get(index).path + ": " + errorMessage);
+                    }
+                    resp.throwIfMore();
+                    logger.debugVerbose("RECV: SEND_ME_FILES: " + sendCount + " files, " + errorCount + " errors");
+                    return errorCount == 0;
+
+                case ProtocolSpec.NOT_OK:
+                    String errorMessage = resp.getString();
+                    logger.debugVerbose("RECV: NOT-OK: " + errorMessage);
+                    System.err.println(errorMessage);
+                    return false;
+
+                default:
+                    logger.debugVerbose("RECV: <unexpected-response>");
+                    throw new RuntimeException("Protocol error");
+                }
+            }
+        };
+        batch.setResponse(result);
+        return result;
+    }
+
+    /**
+     * Compare the digests of some directories with the other endpoint's
+     * copies, returning for each whether it is missing or different there.
+     * If the other end could not work out its digests, all are treated as
+     * different. Set restart for the top directory of each walk so the other
+     * end does not reuse digests from an earlier walk.
+     */
+    public boolean[] directoryDigests(boolean restart, List<String> exclude, List<String> paths, List<byte[]> digests) throws IOException, ConnectionLost {
+        logger.debugVerbose("SEND: Directory digests: " + paths.size() + " directories");
+        MessageWriter msg = new MessageWriter();
+        msg.putByte(ProtocolSpec.DIRECTORY_DIGESTS);
+        msg.putBoolean(restart);
+        msg.putInt(exclude.size());
+        for (String path : exclude) {
+            msg.putString(path);
+        }
+        msg.putInt(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            msg.putString(paths.get(i));
+            msg.putBytes(digests.get(i), 0, digests.get(i).length);
+        }
+
+        MessageReader resp = await(channel.request(msg));
+        try {
+            boolean[] differs = new boolean[paths.size()];
+            int cmd = resp.getByte();
+            if (cmd == ProtocolSpec.DIGESTS_DIFFER) {
+                int count = resp.getInt();
+                for (int i = 0; i < count; i++) {
+                    differs[resp.getInt()] = true;
+                }
+                resp.throwIfMore();
+                logger.debugVerbose("RECV: DIGESTS-DIFFER: " + count + " of " + paths.size());
+                return differs;
+            }
+            if (cmd == ProtocolSpec.NOT_OK) {
+                String errorMessage = resp.getString();
+                logger.debugVerbose("RECV: NOT-OK: " + errorMessage);
+                Arrays.fill(differs, true);
+                return differs;
+            }
             throw new RuntimeException("Protocol error");
+        } finally {
+            resp.release();
         }
     }
 
     public boolean pathDeleted(String path) throws IOException, ConnectionLost {
+        return await(pathDeletedAsync(path));
+    }
+
+    public Future<Boolean> pathDeletedAsync(String path) throws IOException, ConnectionLost {
         logger.debugVerbose("SEND: Delete: " + path);
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.PATH_DELETED);
         msg.putString(path);
-        channel.send(msg);
-        return receiveOkOrNotOk();
+        return new OkResponse(channel.request(msg));
+    }
+
+    /**
+     * Ask the other end to rename a path, waiting for it to be done. Returns
+     * false if it could not be moved.
+     */
+    public boolean movePath(String from, String to) throws IOException, ConnectionLost {
+        logger.debugVerbose("SEND: Move: " + from + " to " + to);
+        MessageWriter msg = new MessageWriter();
+        msg.putByte(ProtocolSpec.MOVE_PATH);
+        msg.putString(from);
+        msg.putString(to);
+        return await(new OkResponse(channel.request(msg)));
+    }
+
+    /**
+     * Send a file, waiting until the other end has written it.
+     */
+    public boolean writeFile(String path, boolean canExecute, File contents) {
+        try {
+            return await(writeFileAsync(path, canExecute, contents));
+        } catch (ConnectionLost e) {
+            logger.debug(e);
+            return false;
+        }
     }
 
     /**
      * This needs to be synchronized as we need to send message and file contents
      * together, with no other messages sneaking in the middle.
+     * Up to WRITE_WINDOW chunks are sent before waiting for a DATA-ACK. Returns
+     * once the whole file has been sent, without waiting for the final response.
      */
-    public boolean writeFile(String path, boolean canExecute, File contents) {
+    public Future<Boolean> writeFileAsync(String path, boolean canExecute, File contents) {
 
         logger.debugVerbose("SEND: WRITE_FILE: Write file to disk: " + path + " " + (canExecute ? "exe" : "plain"));
-        try (FileInputStream in = new FileInputStream(contents)) {
+        if (stripes != null && contents.length() >= StripedWrite.MIN_FILE_SIZE) {
+            boolean written = writeFileStriped(path, canExecute, contents);
+            if (!written && channel.isClosed()) {
+                return failed(new ConnectionLost(new RuntimeException("Connection lost during striped write.")));
+            }
+            return CompletableFuture.completedFuture(written);
+        }
+        if (channel.isCompressing() && FrameCodecs.isCompressible(path)) {
+            return writeFileBuffered(path, canExecute, contents);
+        }
+        return writeFileDirect(path, canExecute, contents);
+    }
+
+    /**
+     * A result for a request that could not be sent, so the caller sees the
+     * connection was lost rather than the file failing.
+     */
+    private static Future<Boolean> failed(ConnectionLost e) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    /**
+     * Send the file contents straight from disk to the socket, without
+     * copying them onto the heap.
+     */
+    private Future<Boolean> writeFileDirect(String path, boolean canExecute, File contents) {
+        Deque<Future<MessageReader>> unacknowledged = null;
+        try (FileChannel in = FileChannel.open(contents.toPath(), StandardOpenOption.READ)) {
 
             MessageWriter msg = new MessageWriter();
+            msg.setCompressible(false);
             msg.putByte(ProtocolSpec.WRITE_FILE);
             msg.putString(path);
             msg.putBoolean(canExecute);
+            msg.putLong(PathResolver.stableModifiedTime(contents));
 
-            byte[] buf = new byte[1024 * 1024];
+            long size = in.size();
+            long position = 0;
             while (true) {
-                int bytesRead = readFill(in, buf);
-                boolean eof = bytesRead < buf.length;
+                int length = (int) Math.min(CHUNK_SIZE, size - position);
+                boolean eof = position + length >= size;
+                logger.debugVerbose("  write file eof=" + Boolean.toString(eof) + " bytes=" + length);
+                msg.putBoolean(eof);
+                msg.putInt(length);
+                Future<MessageReader> response = channel.request(msg, in, position, length);
+                position += length;
+                if (unacknowledged == null) {
+                    unacknowledged = new ArrayDeque<>();
+                }
+                if (eof) {
+                    return new OkResponse(response, unacknowledged);
+                }
+
+                unacknowledged.add(response);
+                if (unacknowledged.size() >= WRITE_WINDOW) {
+                    receiveDataAck(unacknowledged.remove());
+                }
+
+                logger.debugVerbose("SEND: MORE-DATA");
+                msg = new MessageWriter();
+                msg.setCompressible(false);
+                msg.putByte(ProtocolSpec.MORE_DATA);
+            }
+
+        } catch (ConnectionLost e) {
+            return failed(e);
+        } catch (Exception e) {
+            logger.debug("Problem reading " + contents);
+            logger.debug(e);
+            if (unacknowledged != null) {
+                // Part of the file has gone, so the other end must drop it.
+                return abortWrite(path, unacknowledged);
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Tell the other end the file being sent could not be read, so it throws
+     * away what it has received rather than keeping a damaged copy. The
+     * result is always false.
+     */
+    private Future<Boolean> abortWrite(String path, Deque<Future<MessageReader>> unacknowledged) {
+        logger.debugVerbose("SEND: ABORT_WRITE: " + path);
+        MessageWriter msg = new MessageWriter();
+        msg.putByte(ProtocolSpec.ABORT_WRITE);
+        try {
+            return new OkResponse(channel.request(msg), unacknowledged) {
+                @Override
+                protected Boolean decode(MessageReader resp) {
+                    super.decode(resp);
+                    return false;
+                }
+            };
+        } catch (ConnectionLost e) {
+            return failed(e);
+        } catch (IOException e) {
+            return failed(new ConnectionLost(e));
+        }
+    }
+
+    /**
+     * Send a large file as ranges in parallel, one per stripe channel. The
+     * first range is sent by this thread and the rest by the StripedWrite
+     * thread pool. FINISH-STRIPED is always sent once all the ranges are done,
+     * so the other end can clean up if any of them failed.
+     */
+    private boolean writeFileStriped(final String path, boolean canExecute, final File contents) {
+        long modifiedTime = PathResolver.stableModifiedTime(contents);
+        long size = contents.length();
+        final long transferId = transferIds.nextLong();
+        try {
+            logger.debugVerbose("SEND: WRITE_STRIPED: " + path + " " + size + " bytes");
+            MessageWriter msg = new MessageWriter();
+            msg.putByte(ProtocolSpec.WRITE_STRIPED);
+            msg.putString(path);
+            msg.putBoolean(canExecute);
+            msg.putLong(modifiedTime);
+            msg.putLong(transferId);
+            msg.putLong(size);
+            if (!await(new OkResponse(channel.request(msg)))) {
+                return false;
+            }
+        } catch (Exception e) {
+            logger.debug(e);
+            return false;
+        }
+
+        // Ranges are a whole number of chunks, except the last.
+        long chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        long rangeSize = (chunks + stripes.size() - 1) / stripes.size() * CHUNK_SIZE;
+        List<Future<Boolean>> ranges = new ArrayList<>();
+        for (int i = 1; i < stripes.size() && i * rangeSize < size; i++) {
+            final Requestor stripe = stripes.get(i);
+            final long position = i * rangeSize;
+            final long length = Math.min(rangeSize, size - position);
+            ranges.add(StripedWrite.getExecutor().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return stripe.writeRange(path, transferId, contents, position, length);
+                }
+            }));
+        }
+        boolean success = stripes.get(0).writeRange(path, transferId, contents, 0, Math.min(rangeSize, size));
+        for (Future<Boolean> range : ranges) {
+            try {
+                success &= range.get();
+            } catch (InterruptedException | ExecutionException e) {
+                logger.debug(e);
+                success = false;
+            }
+        }
+
+        try {
+            logger.debugVerbose("SEND: FINISH_STRIPED: " + path);
+            MessageWriter msg = new MessageWriter();
+            msg.putByte(ProtocolSpec.FINISH_STRIPED);
+            msg.putLong(transferId);
+            return await(new OkResponse(channel.request(msg))) && success;
+        } catch (Exception e) {
+            logger.debug(e);
+            return false;
+        }
+    }
+
+    /**
+     * Send one range of a striped write as WRITE-RANGE chunks, with the same
+     * DATA-ACK window as writeFile().
+     */
+    private boolean writeRange(String path, long transferId, File contents, long start, long rangeLength) {
+        try (FileChannel in = FileChannel.open(contents.toPath(), StandardOpenOption.READ)) {
+            long end = start + rangeLength;
+            long position = start;
+            Deque<Future<MessageReader>> unacknowledged = new ArrayDeque<>();
+            while (true) {
+                int length = (int) Math.min(CHUNK_SIZE, end - position);
+                boolean last = position + length >= end;
+                logger.debugVerbose("SEND: WRITE_RANGE: position=" + position + " bytes=" + length);
+                MessageWriter msg = new MessageWriter();
+                msg.setCompressible(FrameCodecs.isCompressible(path));
+                msg.putByte(ProtocolSpec.WRITE_RANGE);
+                msg.putLong(transferId);
+                msg.putLong(position);
+                msg.putBoolean(last);
+                msg.putInt(length);
+                Future<MessageReader> response = channel.request(msg, in, position, length);
+                position += length;
+                if (last) {
+                    return await(new OkResponse(response, unacknowledged));
+                }
+
+                unacknowledged.add(response);
+                if (unacknowledged.size() >= WRITE_WINDOW) {
+                    receiveDataAck(unacknowledged.remove());
+                }
+            }
+
+        } catch (Exception e) {
+            logger.debug("Problem reading " + contents);
+            logger.debug(e);
+            return false;
+        }
+    }
+
+    /**
+     * Send the file contents via the heap so they can be compressed, reading
+     * the next chunk from disk while the current one is being sent.
+     */
+    private Future<Boolean> writeFileBuffered(String path, boolean canExecute, final File contents) {
+        Deque<Future<MessageReader>> unacknowledged = null;
+        try (AsynchronousFileChannel in = AsynchronousFileChannel.open(contents.toPath(), StandardOpenOption.READ)) {
+
+            boolean compressible = FrameCodecs.isCompressible(path);
+            MessageWriter msg = new MessageWriter();
+            msg.setCompressible(compressible);
+            msg.putByte(ProtocolSpec.WRITE_FILE);
+            msg.putString(path);
+            msg.putBoolean(canExecute);
+            msg.putLong(PathResolver.stableModifiedTime(contents));
+
+            // No point allocating a full chunk buffer for a small file.
+            int bufSize = (int) Math.min(CHUNK_SIZE, in.size() + 1);
+            ByteBuffer buf = ByteBuffer.allocate(bufSize);
+            ByteBuffer spare = null;
+            long position = 0;
+            Future<Integer> pendingRead = in.read(buf, position);
+            while (true) {
+                int bytesRead = completeRead(in, buf, position, pendingRead);
+                position += bytesRead;
+                boolean eof = bytesRead < buf.capacity();
+
+                // Read ahead the next chunk while this one goes over the network.
+                ByteBuffer next = null;
+                if (!eof) {
+                    next = (spare != null) ? spare : ByteBuffer.allocate(bufSize);
+                    next.clear();
+                    pendingRead = in.read(next, position);
+                }
+
                 logger.debugVerbose("  write file eof=" + Boolean.toString(eof) + " bytes=" + bytesRead);
                 msg.putBoolean(eof);
                 msg.putInt(bytesRead);
-                msg.putBytes(buf,  0,  bytesRead);
-                channel.send(msg);
-                if (!receiveOkOrNotOk()) {
-                    return false;
+                msg.putBytes(buf.array(), 0, bytesRead);
+                Future<MessageReader> response = channel.request(msg);
+                if (unacknowledged == null) {
+                    unacknowledged = new ArrayDeque<>();
                 }
                 if (eof) {
-                    break;
+                    return new OkResponse(response, unacknowledged);
                 }
+
+                unacknowledged.add(response);
+                if (unacknowledged.size() >= WRITE_WINDOW) {
+                    receiveDataAck(unacknowledged.remove());
+                }
+
+                spare = buf;
+                buf = next;
                 logger.debugVerbose("SEND: MORE-DATA");
                 msg = new MessageWriter();
+                msg.setCompressible(compressible);
                 msg.putByte(ProtocolSpec.MORE_DATA);
             }
+
+        } catch (ConnectionLost e) {
+            return failed(e);
         } catch (Exception e) {
             logger.debug("Problem reading " + contents);
             logger.debug(e);
-            return false;
+            if (unacknowledged != null) {
+                return abortWrite(path, unacknowledged);
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Send a batch of small files and directories in a single request,
+     * without waiting for the response.
+     */
+    public Future<Boolean> writeFilesAsync(WriteBatch batch) throws IOException, ConnectionLost {
+        logger.debugVerbose("SEND: WRITE_FILES: " + batch.getEntries().size() + " paths");
+        MessageWriter msg = new MessageWriter();
+        msg.putByte(ProtocolSpec.WRITE_FILES);
+        msg.putInt(batch.getEntries().size());
+        for (WriteBatch.Entry e : batch.getEntries()) {
+            msg.putBoolean(e.isDirectory);
+            msg.putString(e.path);
+            if (!e.isDirectory) {
+                msg.putBoolean(e.canExecute);
+                msg.putLong(e.modifiedTime);
+                msg.putInt(e.contents.length);
+                msg.putBytes(e.contents, 0, e.contents.length);
+            }
+        }
+        return new OkResponse(channel.request(msg));
+    }
+
+    /**
+     * Send only the differences between the file and the other endpoint's
+     * copy, as described by the block signatures it sent. If the delta
+     * cannot be made, or the other end could not rebuild the file from it,
+     * the whole file is sent instead. Returns false if the file could not
+     * be sent.
+     */
+    public boolean writeDelta(String path, boolean canExecute, File contents, Fingerprint fingerprint, FileDelta.Signatures signatures) throws ConnectionLost {
+
+        logger.debugVerbose("SEND: WRITE_DELTA: " + path + " " + signatures.blockCount() + " blocks of " + signatures.blockSize);
+        DeltaStream out = null;
+        try (FileChannel in = FileChannel.open(contents.toPath(), StandardOpenOption.READ)) {
+
+            if (in.size() <= FileDelta.MAX_FILE_SIZE) {
+                MessageWriter msg = new MessageWriter();
+                msg.setCompressible(FrameCodecs.isCompressible(path));
+                msg.putByte(ProtocolSpec.WRITE_DELTA);
+                msg.putString(path);
+                msg.putBoolean(canExecute);
+                msg.putFingerprint(fingerprint);
+                msg.putInt(signatures.blockSize);
+
+                out = new DeltaStream(msg);
+                FileDelta.encode(signatures, in, out);
+                if (out.finish()) {
+                    return true;
+                }
+            }
+
+        } catch (ConnectionLost e) {
+            throw e;
+        } catch (Exception e) {
+            logger.debug("Problem sending delta for " + contents);
+            logger.debug(e);
+            if (out != null && out.isOpen()) {
+                // Part of the delta has gone, so the other end must drop it
+                // rather than have the whole file sent over the top.
+                return await(abortWrite(path, out.unacknowledged));
+            }
         }
-        return true;
+
+        // Could not patch the other end's copy, so send the whole file.
+        return await(writeFileAsync(path, canExecute, contents));
     }
 
-    private static int readFill(FileInputStream input, byte[] buf) throws IOException {
-        int offset = 0;
-        int remaining = buf.length;
-        while (remaining > 0) {
-            int bytesRead = input.read(buf, offset, remaining);
-            if (bytesRead <= 0) {
-                return offset;
+    /**
+     * Packs delta operations into WRITE-DELTA/MORE-DELTA messages, using the
+     * same DATA-ACK window as writeFile().
+     */
+    private class DeltaStream implements FileDelta.Output {
+
+        private MessageWriter msg;
+        private Deque<Future<MessageReader>> unacknowledged = new ArrayDeque<>();
+        private boolean started = false;
+        private boolean finished = false;
+
+        private DeltaStream(MessageWriter msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public void literal(ByteBuffer data) throws IOException, ConnectionLost {
+            msg.putByte(FileDelta.LITERAL);
+            msg.putInt(data.remaining());
+            msg.putBytes(data);
+            sendIfFull();
+        }
+
+        @Override
+        public void copy(int firstBlock, int blockCount) throws IOException, ConnectionLost {
+            msg.putByte(FileDelta.COPY);
+            msg.putInt(firstBlock);
+            msg.putInt(blockCount);
+            sendIfFull();
+        }
+
+        private void sendIfFull() throws IOException, ConnectionLost {
+            if (msg.size() < CHUNK_SIZE) {
+                return;
             }
-            offset += bytesRead;
-            remaining -= bytesRead;
+            boolean compressible = msg.isCompressible();
+            unacknowledged.add(channel.request(msg));
+            started = true;
+            if (unacknowledged.size() >= WRITE_WINDOW) {
+                receiveDataAck(unacknowledged.remove());
+            }
+            logger.debugVerbose("SEND: MORE-DELTA");
+            msg = new MessageWriter();
+            msg.setCompressible(compressible);
+            msg.putByte(ProtocolSpec.MORE_DELTA);
+        }
+
+        private boolean finish() throws IOException, ConnectionLost {
+            msg.putByte(FileDelta.END);
+            Future<MessageReader> response = channel.request(msg);
+            finished = true;
+            return await(new OkResponse(response, unacknowledged));
+        }
+
+        /**
+         * Returns true if the other end has been sent part of the delta but
+         * not its end.
+         */
+        private boolean isOpen() {
+            return started && !finished;
         }
-        return offset;
+    }
+
+    /**
+     * Wait for a read to finish, then keep reading until the buffer is full or
+     * the end of file is reached. Returns the number of bytes in the buffer.
+     */
+    private static int completeRead(AsynchronousFileChannel input, ByteBuffer buf, long position, Future<Integer> pendingRead) throws IOException {
+        try {
+            int bytesRead = pendingRead.get();
+            while (bytesRead > 0 && buf.hasRemaining()) {
+                bytesRead = input.read(buf, position + buf.position()).get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Failed to read file", e);
+        }
+        return buf.position();
     }
 
     public boolean createDirectory(String path) throws IOException, ConnectionLost {
+        return await(createDirectoryAsync(path));
+    }
+
+    public Future<Boolean> createDirectoryAsync(String path) throws IOException, ConnectionLost {
         logger.debugVerbose("SEND: Create directory: " + path);
         MessageWriter msg = new MessageWriter();
         msg.putByte(ProtocolSpec.CREATE_DIRECTORY);
         msg.putString(path);
-        channel.send(msg);
-        return receiveOkOrNotOk();
+        return new OkResponse(channel.request(msg));
+    }
+
+    private void receiveDataAck(Future<MessageReader> response) throws ConnectionLost {
+        MessageReader resp = await(response);
+        try {
+            if (resp.getByte() != ProtocolSpec.DATA_ACK) {
+                throw new RuntimeException("Protocol error!");
+            }
+        } finally {
+            resp.release();
+        }
+        logger.debugVerbose("RECV: DATA_ACK");
     }
 
-    private boolean receiveOkOrNotOk() throws ConnectionLost {
-        MessageReader resp = channel.receive();
-        int cmd = resp.getByte();
-        if (cmd == ProtocolSpec.OK) {
-            logger.debugVerbose("RECV: OK");
-            return true;
+    /**
+     * The result of a request, decoded from its response by the first call
+     * to get(). DATA-ACK responses still due for earlier chunks of the same
+     * transfer are collected first, as they arrive before the final response.
+     */
+    private abstract class Response<T> implements Future<T> {
+
+        private Future<MessageReader> response;
+        private Collection<Future<MessageReader>> dataAcks;
+        private boolean decoded = false;
+        private T result;
+
+        private Response(Future<MessageReader> response) {
+            this(response, Collections.<Future<MessageReader>>emptyList());
+        }
+
+        private Response(Future<MessageReader> response, Collection<Future<MessageReader>> dataAcks) {
+            this.response = response;
+            this.dataAcks = dataAcks;
         }
-        if (cmd == ProtocolSpec.NOT_OK) {
-            String errorMessage = resp.getString();
-            logger.debugVerbose("RECV: NOT-OK: " + errorMessage);
-            System.err.println(errorMessage);
+
+        protected abstract T decode(MessageReader resp);
+
+        @Override
+        synchronized public T get() throws InterruptedException, ExecutionException {
+            if (!decoded) {
+                try {
+                    for (Future<MessageReader> ack : dataAcks) {
+                        receiveDataAck(ack);
+                    }
+                } catch (ConnectionLost e) {
+                    throw new ExecutionException(e);
+                }
+                MessageReader resp = response.get();
+                try {
+                    result = decode(resp);
+                } finally {
+                    resp.release();
+                }
+                decoded = true;
+            }
+            return result;
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            response.get(timeout, unit);
+            return get();
+        }
+
+        @Override
+        public boolean isDone() {
+            return response.isDone();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
             return false;
         }
-        throw new RuntimeException("Protocol error!");
+    }
+
+    /**
+     * The result of a request answered with OK or NOT-OK.
+     */
+    private class OkResponse extends Response<Boolean> {
+
+        private OkResponse(Future<MessageReader> response) {
+            super(response);
+        }
+
+        private OkResponse(Future<MessageReader> response, Collection<Future<MessageReader>> dataAcks) {
+            super(response, dataAcks);
+        }
+
+        @Override
+        protected Boolean decode(MessageReader resp) {
+            int cmd = resp.getByte();
+            if (cmd == ProtocolSpec.OK) {
+                logger.debugVerbose("RECV: OK");
+                return true;
+            }
+            if (cmd == ProtocolSpec.NOT_OK) {
+                String errorMessage = resp.getString();
+                logger.debugVerbose("RECV: NOT-OK: " + errorMessage);
+                System.err.println(errorMessage);
+                return false;
+            }
+            throw new RuntimeException("Protocol error!");
+        }
     }
 }
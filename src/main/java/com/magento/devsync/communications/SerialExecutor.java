@@ -0,0 +1,72 @@
+package com.magento.devsync.communications;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time, in the order submitted, on a shared thread pool.
+ * Lets a reactor process some requests in the background, in order relative
+ * to each other, without needing a thread of its own.
+ */
+public class SerialExecutor implements Executor {
+
+    private static ExecutorService sharedPool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private AtomicInteger count = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Background-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private Executor pool;
+    private Queue<Runnable> tasks = new ArrayDeque<>();
+    private boolean running = false;
+    private Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public SerialExecutor() {
+        this(sharedPool);
+    }
+
+    public SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    synchronized public void execute(Runnable task) {
+        tasks.add(task);
+        if (!running) {
+            running = true;
+            pool.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.magento.devsync.communications;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue for exactly one producer thread and one consumer thread
+ * at a time, backed by a ring buffer. Neither side takes a lock or allocates;
+ * each only writes its own index. Null elements are not allowed.
+ */
+public class SpscQueue<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+
+    /**
+     * Index of the next element to take. Only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Index of the next free slot. Only written by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The capacity is rounded up to a power of two.
+     */
+    public SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element, returning false if the queue is full. Producer only.
+     */
+    public boolean offer(E e) {
+        long t = tail.get();
+        if (t - head.get() >= buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = e;
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest element, returning null if the queue is empty.
+     * Consumer only.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        E e = (E) buffer[index];
+        buffer[index] = null;
+        head.set(h + 1);
+        return e;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public boolean isFull() {
+        return tail.get() - head.get() >= buffer.length;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+}
@@ -0,0 +1,86 @@
+package com.magento.devsync.communications;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Refers to a UTF-8 encoded string (such as a path or fingerprint) inside a
+ * received message, so it can be compared without creating a String. One
+ * instance can be reused for many strings. It is only valid until the next
+ * message is received on the channel.
+ */
+public class StringRef {
+
+    private byte[] array;
+    private int offset;
+    private int length;
+
+    protected void set(byte[] array, int offset, int length) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * The length of the string in bytes (not characters).
+     */
+    public int byteLength() {
+        return length;
+    }
+
+    public boolean contentEquals(String s) {
+        return matchPrefix(s) == length;
+    }
+
+    public boolean startsWith(String prefix) {
+        return matchPrefix(prefix) >= 0;
+    }
+
+    /**
+     * Returns the number of bytes of this string matched by the whole of the
+     * specified string, or -1 if this string does not start with it.
+     */
+    private int matchPrefix(String s) {
+        int pos = offset;
+        int end = offset + length;
+        for (int i = 0; i < s.length(); i++) {
+            int cp = s.charAt(i);
+            if (Character.isHighSurrogate((char) cp) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                cp = Character.toCodePoint((char) cp, s.charAt(++i));
+            } else if (Character.isSurrogate((char) cp)) {
+                cp = '?';
+            }
+            if (cp < 0x80) {
+                if (pos >= end || array[pos++] != (byte) cp) {
+                    return -1;
+                }
+            } else if (cp < 0x800) {
+                if (pos + 2 > end
+                        || array[pos++] != (byte) (0xc0 | (cp >> 6))
+                        || array[pos++] != (byte) (0x80 | (cp & 0x3f))) {
+                    return -1;
+                }
+            } else if (cp < 0x10000) {
+                if (pos + 3 > end
+                        || array[pos++] != (byte) (0xe0 | (cp >> 12))
+                        || array[pos++] != (byte) (0x80 | ((cp >> 6) & 0x3f))
+                        || array[pos++] != (byte) (0x80 | (cp & 0x3f))) {
+                    return -1;
+                }
+            } else {
+                if (pos + 4 > end
+                        || array[pos++] != (byte) (0xf0 | (cp >> 18))
+                        || array[pos++] != (byte) (0x80 | ((cp >> 12) & 0x3f))
+                        || array[pos++] != (byte) (0x80 | ((cp >> 6) & 0x3f))
+                        || array[pos++] != (byte) (0x80 | (cp & 0x3f))) {
+                    return -1;
+                }
+            }
+        }
+        return pos - offset;
+    }
+
+    @Override
+    public String toString() {
+        return new String(array, offset, length, StandardCharsets.UTF_8);
+    }
+}
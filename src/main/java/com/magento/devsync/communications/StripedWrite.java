@@ -0,0 +1,230 @@
+package com.magento.devsync.communications;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Large files are split into ranges that are sent in parallel on extra
+ * "stripe" channels, so one big file is not limited to the window of
+ * unacknowledged chunks of a single channel. The receiving end preallocates a
+ * temporary file, writes each range at its position as it arrives, and only
+ * moves the file into place once every byte has arrived.
+ */
+public class StripedWrite {
+
+    /**
+     * Files at least this big are striped.
+     */
+    public static final long MIN_FILE_SIZE = 32L * 1024 * 1024;
+
+    /**
+     * Number of ranges (and channels) a file is split into.
+     */
+    public static final int STRIPES = 4;
+
+    /**
+     * First channel number used for ranges sent from client to server.
+     */
+    public static final int CLIENT_TO_SERVER_CHANNEL = 2;
+
+    /**
+     * First channel number used for ranges sent from server to client.
+     */
+    public static final int SERVER_TO_CLIENT_CHANNEL = CLIENT_TO_SERVER_CHANNEL + STRIPES;
+
+    /**
+     * Writes being received, by connection then transfer id, so those of a
+     * connection that goes can be cleaned up.
+     */
+    private static ConcurrentHashMap<ChannelMultiplexer, ConcurrentHashMap<Long, StripedWrite>> inProgress = new ConcurrentHashMap<>();
+
+    private static ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private AtomicInteger count = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Stripe-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private File target;
+    private File tempFile;
+    private boolean canExecute;
+    private long modifiedTime;
+    private long size;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private AtomicLong received = new AtomicLong();
+    private volatile Exception error;
+
+    private StripedWrite(File target, boolean canExecute, long modifiedTime, long size) throws IOException {
+        this.target = target;
+        this.tempFile = PathResolver.tempFileFor(target);
+        this.canExecute = canExecute;
+        this.modifiedTime = modifiedTime;
+        this.size = size;
+        this.file = new RandomAccessFile(tempFile, "rw");
+        try {
+            file.setLength(size);
+        } catch (IOException e) {
+            file.close();
+            tempFile.delete();
+            throw e;
+        }
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Create requestors for the stripe channels ranges are sent on.
+     */
+    public static List<Requestor> createRequestors(ChannelMultiplexer multiplexer, int firstChannel, Logger logger) {
+        List<Requestor> requestors = new ArrayList<>();
+        for (int i = 0; i < STRIPES; i++) {
+            requestors.add(new Requestor(new Channel(firstChannel + i, multiplexer), logger));
+        }
+        return requestors;
+    }
+
+    /**
+     * Create reactors for the stripe channels ranges are received on. They
+     * only handle WRITE-RANGE requests, so are run on the thread pool as
+     * messages arrive rather than having a thread each.
+     */
+    public static void createReactors(ChannelMultiplexer multiplexer, int firstChannel, Logger logger) {
+        createReactors(multiplexer, firstChannel, executor, logger);
+    }
+
+    /**
+     * Create reactors for the stripe channels, run on the specified executor.
+     */
+    public static void createReactors(ChannelMultiplexer multiplexer, int firstChannel, Executor dispatcher, Logger logger) {
+        for (int i = 0; i < STRIPES; i++) {
+            Channel channel = new Channel(firstChannel + i, multiplexer);
+            channel.dispatchTo(dispatcher, new Reactor(channel, logger, null));
+        }
+    }
+
+    /**
+     * The thread pool ranges are sent and received on.
+     */
+    protected static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Create and preallocate the temporary file for a striped write.
+     */
+    protected static void start(ChannelMultiplexer connection, long transferId, File target, boolean canExecute, long modifiedTime, long size) throws IOException {
+        ConcurrentHashMap<Long, StripedWrite> writes = inProgress.get(connection);
+        if (writes == null) {
+            inProgress.putIfAbsent(connection, new ConcurrentHashMap<Long, StripedWrite>());
+            writes = inProgress.get(connection);
+        }
+        writes.put(transferId, new StripedWrite(target, canExecute, modifiedTime, size));
+    }
+
+    protected static StripedWrite get(ChannelMultiplexer connection, long transferId) {
+        ConcurrentHashMap<Long, StripedWrite> writes = inProgress.get(connection);
+        return writes == null ? null : writes.get(transferId);
+    }
+
+    protected static StripedWrite remove(ChannelMultiplexer connection, long transferId) {
+        ConcurrentHashMap<Long, StripedWrite> writes = inProgress.get(connection);
+        return writes == null ? null : writes.remove(transferId);
+    }
+
+    /**
+     * Give up on the writes still being received on a connection that has
+     * gone, deleting their temporary files. Returns true if there were any.
+     */
+    protected static boolean closed(ChannelMultiplexer connection) {
+        ConcurrentHashMap<Long, StripedWrite> writes = inProgress.remove(connection);
+        if (writes == null || writes.isEmpty()) {
+            return false;
+        }
+        for (StripedWrite striped : writes.values()) {
+            striped.failed(new IOException("Connection lost while receiving " + striped.getTarget()));
+            striped.finish();
+        }
+        return true;
+    }
+
+    /**
+     * Write part of a range at its position in the file.
+     */
+    protected void write(ByteBuffer data, long position) throws IOException {
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        received.addAndGet(length);
+    }
+
+    /**
+     * Copy file contents following a message to their position in the file.
+     */
+    protected void write(MessageReader msg, long position) throws IOException {
+        long length = msg.getBodyLength();
+        msg.transferBodyTo(channel, position);
+        received.addAndGet(length);
+    }
+
+    protected void failed(Exception e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    protected File getTarget() {
+        return target;
+    }
+
+    protected Exception getError() {
+        return error;
+    }
+
+    /**
+     * Close the file and, if all of it arrived, move it into place. Returns
+     * the error if the write failed.
+     */
+    protected Exception finish() {
+        try {
+            channel.close();
+            file.close();
+            if (error == null && received.get() != size) {
+                error = new IOException("Only received " + received.get() + " of " + size + " bytes for " + target);
+            }
+            if (error == null) {
+                tempFile.setExecutable(canExecute);
+                PathResolver.setModifiedTime(tempFile, modifiedTime);
+                try {
+                    Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (Exception e) {
+            failed(e);
+        }
+        if (error != null) {
+            tempFile.delete();
+        }
+        return error;
+    }
+}
@@ -2,20 +2,112 @@ package com.magento.devsync.communications;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import com.magento.devsync.config.Mount;
 import com.magento.devsync.config.SyncRule;
 import com.magento.devsync.config.YamlFile;
 
+/**
+ * Walks the local directory trees to be synced, sending fingerprints to the
+ * other endpoint in batches. Several batches are kept in flight at once so
+ * the walk is limited by hashing and bandwidth rather than by round trips.
+ * Requested files are sent as soon as each batch response arrives, without
+ * waiting for the other batches or for earlier files to be written.
+ * <p>
+ * Each tree is scanned locally first, forming a digest per directory from
+ * the bottom up out of the sizes and modification times of its files (or
+ * the fingerprints of files changed too recently to trust their times). The
+ * digests are then compared with the other endpoint from the top down, and
+ * only directories that differ have their files sent in batches, so an
+ * unchanged tree costs a single round trip.
+ * <p>
+ * Scanning and hashing are spread over a fork-join pool: directories are
+ * listed and files hashed in parallel, but each directory keeps its entries
+ * in listing order, so what is sent does not depend on which thread got
+ * there first.
+ */
 public class SyncTreeWalker {
 
+    /**
+     * Number of fingerprint batches sent before waiting for a response.
+     */
+    private static final int MAX_BATCHES_IN_FLIGHT = 4;
+
+    /**
+     * Number of file writes sent before waiting for the oldest to complete.
+     */
+    private static final int MAX_WRITES_IN_FLIGHT = 64;
+
+    /**
+     * Number of threads to hash files with on a spinning disk, where more
+     * readers just make the disk seek between files.
+     */
+    public static final int SPINNING_DISK_PARALLELISM = 2;
+
+    /**
+     * Number of threads to hash files with, by default one per core.
+     */
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private static ForkJoinPool pool;
+
     private Logger logger; 
     private Requestor requestor;
     private YamlFile config;
     private PathResolver pathResolver;
     private int syncFileCount = 0;
+    private FingerprintBatch batch = new FingerprintBatch();
+    private Deque<FingerprintBatch> inFlight = new ArrayDeque<>();
+    private Deque<Future<Boolean>> writesInFlight = new ArrayDeque<>();
+    private List<FingerprintBatch.Entry> filesToSend = new ArrayList<>();
+    private List<FingerprintBatch.Entry> filesToPatch = new ArrayList<>();
+
+    /**
+     * A directory of the tree being walked.
+     */
+    private static class DirectoryNode {
+        String path;
+        byte[] digest;
+        List<FileNode> files = new ArrayList<>();
+        List<DirectoryNode> subdirectories = new ArrayList<>();
+        int fileCount;
+
+        DirectoryNode(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * A file of the tree being walked. It is only hashed if needed, so the
+     * fingerprint may be null.
+     */
+    private static class FileNode {
+        String path;
+        boolean canExecute;
+        long size;
+        long modifiedTime;
+        File contents;
+        Fingerprint fingerprint;
+
+        FileNode(String path, File contents) {
+            this.path = path;
+            this.canExecute = contents.canExecute();
+            this.modifiedTime = PathResolver.stableModifiedTime(contents);
+            this.size = contents.length();
+            this.contents = contents;
+        }
+    }
 
     public SyncTreeWalker(
             Requestor requestor,
@@ -28,34 +120,94 @@ public class SyncTreeWalker {
         this.logger = logger;
     }
 
-    public void clientToServerWalk() throws ConnectionLost {
+    /**
+     * Set the number of threads used to fingerprint files. Must be called
+     * before the first walk.
+     */
+    public static synchronized void setParallelism(int threads) {
+        parallelism = Math.max(1, threads);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    /**
+     * Walk the trees pushed from the client to the server. The initial sync
+     * walks both directions at once, except for trees pushed one way and
+     * pulled the other (including 'sync' rules), which the server only walks
+     * once the client has finished walking them. The walk is split in two
+     * so the client can walk those trees first.
+     */
+    public void clientToServerWalk(boolean overlapping) throws ConnectionLost {
+        walk(true, overlapping);
+    }
+
+    /**
+     * Walk the trees pulled from the server to the client, either those that
+     * overlap a tree pushed the other way or the rest.
+     */
+    public void serverToClientWalk(boolean overlapping) throws ConnectionLost {
+        walk(false, overlapping);
+    }
+
+    private void walk(boolean push, boolean overlapping) throws ConnectionLost {
         for (Mount m : config.mounts) {
             for (List<SyncRule> syncRules : Arrays.asList(m.once, m.watch)) {
                 for (SyncRule sr : syncRules) {
-                    if (sr.mode.equals("push") || sr.mode.equals("sync")) {
-                        fileWalk(PathResolver.joinPath(m.local, sr.path), sr.exclude);
+                    String path = PathResolver.joinPath(m.local, sr.path);
+                    if ((push ? pushes(sr) : pulls(sr)) && overlapsOtherDirection(path, push) == overlapping) {
+                        fileWalk(path, sr.exclude);
                     }
                 }
             }
         }
+        finish();
+    }
+
+    private static boolean pushes(SyncRule sr) {
+        return sr.mode.equals("push") || sr.mode.equals("sync");
+    }
+
+    private static boolean pulls(SyncRule sr) {
+        return sr.mode.equals("pull") || sr.mode.equals("sync");
     }
 
-    public void serverToClientWalk() throws ConnectionLost {
+    /**
+     * Returns true if the tree overlaps one synced in the other direction.
+     */
+    private boolean overlapsOtherDirection(String path, boolean push) {
         for (Mount m : config.mounts) {
             for (List<SyncRule> syncRules : Arrays.asList(m.once, m.watch)) {
                 for (SyncRule sr : syncRules) {
-                    if (sr.mode.equals("pull") || sr.mode.equals("sync")) {
-                        fileWalk(PathResolver.joinPath(m.local, sr.path), sr.exclude);
+                    if ((push ? pulls(sr) : pushes(sr)) && PathResolver.pathsOverlap(path, PathResolver.joinPath(m.local, sr.path))) {
+                        return true;
                     }
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * Sync a single tree, such as a directory just moved, returning once the
+     * files that differ have been written.
+     */
+    public void treeWalk(String path, List<String> exclude) throws ConnectionLost {
+        fileWalk(path, exclude);
+        finish();
     }
 
     public void fileWalk(String path, List<String> exclude) throws ConnectionLost {
         if (exclude.contains(path)) {
             return;
         }
+        if (PathResolver.isTempFile(new File(path).getName())) {
+            return;
+        }
         File f = pathResolver.clientPathToFile(path);
         if (!f.exists()) {
             logger.debugVerbose("Filewalk: Path does not exist: " + path + " => " + f);
@@ -64,21 +216,266 @@ public class SyncTreeWalker {
         logger.debugVerbose("FILEWALK: " + path + " => " + f);
         try {
             if (f.isDirectory()) {
-                requestor.createDirectory(path);
-                File[] files = f.listFiles();
-                for (File child : files) {
-                    fileWalk(path + "/" + child.getName(), exclude);
-                }
+                DirectoryNode top = getPool().invoke(new ScanTask(path, f, exclude));
+                syncFileCount += top.fileCount;
+                compareTree(top, exclude);
             } else {
-                String fingerprint = PathResolver.fingerprint(f);
+                Fingerprint fingerprint = PathResolver.fingerprint(f, requestor.getFileHash());
                 boolean canExecute = f.canExecute();
-                requestor.pathFingerprint(path, canExecute, f, fingerprint);
+                batch.addFile(path, canExecute, f, fingerprint);
+                sendBatchIfFull();
                 syncFileCount++;
             }
         } catch (IOException e) {
             logger.warn(e);
         }
     }
+
+    /**
+     * List the files of a directory tree, working out the digest of each
+     * directory on the way back up. Subdirectories are scanned as separate
+     * tasks, which are joined in listing order. Files are only hashed in
+     * paranoid mode, or if changed too recently for their times to be
+     * trusted; otherwise their sizes and times go in the digests.
+     */
+    private class ScanTask extends RecursiveTask<DirectoryNode> {
+
+        private static final long serialVersionUID = 8261657684473197624L;
+
+        private String path;
+        private File dir;
+        private List<String> exclude;
+
+        ScanTask(String path, File dir, List<String> exclude) {
+            this.path = path;
+            this.dir = dir;
+            this.exclude = exclude;
+        }
+
+        @Override
+        protected DirectoryNode compute() {
+            DirectoryNode node = new DirectoryNode(path);
+            List<ScanTask> subdirectories = new ArrayList<>();
+            File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    String childPath = path + "/" + child.getName();
+                    if (exclude.contains(childPath) || PathResolver.isTempFile(child.getName())) {
+                        continue;
+                    }
+                    File f = pathResolver.clientPathToFile(childPath);
+                    if (!f.exists()) {
+                        logger.debugVerbose("Filewalk: Path does not exist: " + childPath + " => " + f);
+                        continue;
+                    }
+                    logger.debugVerbose("FILEWALK: " + childPath + " => " + f);
+                    if (f.isDirectory()) {
+                        subdirectories.add(new ScanTask(childPath, f, exclude));
+                    } else {
+                        node.files.add(new FileNode(childPath, f));
+                    }
+                }
+            }
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(subdirectories);
+            boolean paranoid = requestor.isParanoid();
+            List<FileNode> toHash = new ArrayList<>();
+            for (FileNode file : node.files) {
+                if (paranoid || file.modifiedTime == PathResolver.UNKNOWN_MODIFIED_TIME) {
+                    toHash.add(file);
+                }
+            }
+            if (!toHash.isEmpty()) {
+                tasks.add(new HashTask(toHash));
+            }
+            invokeAll(tasks);
+
+            DirectoryDigest digest = new DirectoryDigest(requestor.getFileHash());
+            for (FileNode file : node.files) {
+                String name = new File(file.path).getName();
+                if (paranoid || file.modifiedTime == PathResolver.UNKNOWN_MODIFIED_TIME) {
+                    digest.addFile(name, file.fingerprint);
+                } else {
+                    digest.addFile(name, file.canExecute, file.size, file.modifiedTime);
+                }
+            }
+            node.fileCount = node.files.size();
+            for (ScanTask task : subdirectories) {
+                DirectoryNode subdirectory = task.join();
+                node.subdirectories.add(subdirectory);
+                node.fileCount += subdirectory.fileCount;
+                digest.addDirectory(new File(subdirectory.path).getName(), subdirectory.digest);
+            }
+            node.digest = digest.getDigest();
+            return node;
+        }
+    }
+
+    /**
+     * Fingerprint a list of files, splitting it in half until each task has
+     * a single file.
+     */
+    private class HashTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 2784249659845191438L;
+
+        private List<FileNode> files;
+
+        HashTask(List<FileNode> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            if (files.size() > 1) {
+                int middle = files.size() / 2;
+                invokeAll(new HashTask(files.subList(0, middle)), new HashTask(files.subList(middle, files.size())));
+            } else if (files.size() == 1 && files.get(0).fingerprint == null) {
+                FileNode file = files.get(0);
+                file.fingerprint = PathResolver.fingerprint(file.contents, requestor.getFileHash());
+            }
+        }
+    }
+
+    /**
+     * Compare directory digests with the other endpoint a level at a time,
+     * starting from the top. Directories that match are skipped along with
+     * everything below them; those that differ have their files hashed and
+     * sent in fingerprint batches, and their subdirectories compared next.
+     */
+    private void compareTree(DirectoryNode top, List<String> exclude) throws IOException, ConnectionLost {
+        List<DirectoryNode> level = Collections.singletonList(top);
+        boolean restart = true;
+        while (!level.isEmpty()) {
+            List<DirectoryNode> nextLevel = new ArrayList<>();
+            for (int start = 0; start < level.size(); start += FingerprintBatch.MAX_ENTRIES) {
+                List<DirectoryNode> group = level.subList(start, Math.min(level.size(), start + FingerprintBatch.MAX_ENTRIES));
+                List<String> paths = new ArrayList<>();
+                List<byte[]> digests = new ArrayList<>();
+                for (DirectoryNode dir : group) {
+                    paths.add(dir.path);
+                    digests.add(dir.digest);
+                }
+                boolean[] differs = requestor.directoryDigests(restart, exclude, paths, digests);
+                restart = false;
+
+                // Only now are the files worth hashing, all at once so they
+                // are spread over the pool.
+                List<FileNode> files = new ArrayList<>();
+                for (int i = 0; i < group.size(); i++) {
+                    if (differs[i]) {
+                        files.addAll(group.get(i).files);
+                    }
+                }
+                getPool().invoke(new HashTask(files));
+
+                for (int i = 0; i < group.size(); i++) {
+                    DirectoryNode dir = group.get(i);
+                    if (!differs[i]) {
+                        logger.debugVerbose("Filewalk: unchanged " + dir.path);
+                        continue;
+                    }
+                    batch.addDirectory(dir.path);
+                    sendBatchIfFull();
+                    for (FileNode file : dir.files) {
+                        batch.addFile(file.path, file.canExecute, file.contents, file.fingerprint);
+                        sendBatchIfFull();
+                    }
+                    nextLevel.addAll(dir.subdirectories);
+                }
+            }
+            level = nextLevel;
+        }
+    }
+
+    private void sendBatchIfFull() throws IOException, ConnectionLost {
+        if (batch.isFull()) {
+            sendBatch();
+        }
+    }
+
+    private void sendBatch() throws IOException, ConnectionLost {
+        if (batch.isEmpty()) {
+            return;
+        }
+        requestor.sendPathFingerprints(batch);
+        inFlight.add(batch);
+        batch = new FingerprintBatch();
+
+        if (inFlight.size() >= MAX_BATCHES_IN_FLIGHT) {
+            receiveBatch();
+        }
+        sendFiles();
+    }
+
+    private void receiveBatch() throws ConnectionLost {
+        FingerprintBatch b = inFlight.remove();
+        Requestor.await(b.getResponse());
+        filesToSend.addAll(b.getFilesToSend());
+        filesToPatch.addAll(b.getFilesToPatch());
+    }
+
+    /**
+     * Send the requested files, packing small ones into WRITE-FILES batches.
+     */
+    private void sendFiles() throws IOException, ConnectionLost {
+        WriteBatch smallFiles = new WriteBatch();
+        for (FingerprintBatch.Entry e : filesToSend) {
+            logger.debugVerbose("Filewalk: sending " + e.path);
+            if (!WriteBatch.canPack(e.contents)) {
+                sentWrite(requestor.writeFileAsync(e.path, e.canExecute, e.contents));
+                continue;
+            }
+            try {
+                smallFiles.addFile(e.path, e.canExecute, e.contents);
+            } catch (IOException ex) {
+                logger.debug("Problem reading " + e.contents);
+                logger.debug(ex);
+                continue;
+            }
+            if (smallFiles.isFull()) {
+                sentWrite(requestor.writeFilesAsync(smallFiles));
+                smallFiles = new WriteBatch();
+            }
+        }
+        if (!smallFiles.isEmpty()) {
+            sentWrite(requestor.writeFilesAsync(smallFiles));
+        }
+        filesToSend.clear();
+
+        // The other end has an older copy of these, so fingerprint them
+        // individually to give it the chance to ask for a delta.
+        for (FingerprintBatch.Entry e : filesToPatch) {
+            logger.debugVerbose("Filewalk: patching " + e.path);
+            requestor.pathFingerprint(e.path, e.canExecute, e.contents, e.fingerprint);
+        }
+        filesToPatch.clear();
+    }
+
+    private void sentWrite(Future<Boolean> write) throws ConnectionLost {
+        writesInFlight.add(write);
+        if (writesInFlight.size() > MAX_WRITES_IN_FLIGHT) {
+            Requestor.await(writesInFlight.remove());
+        }
+    }
+
+    /**
+     * Send any partly filled batch, then wait for all outstanding responses,
+     * send the files requested and wait for them to be written.
+     */
+    private void finish() throws ConnectionLost {
+        try {
+            sendBatch();
+            while (!inFlight.isEmpty()) {
+                receiveBatch();
+            }
+            sendFiles();
+        } catch (IOException e) {
+            logger.warn(e);
+        }
+        while (!writesInFlight.isEmpty()) {
+            Requestor.await(writesInFlight.remove());
+        }
+    }
     
     public int getSyncFileCount() {
         return syncFileCount;
@@ -0,0 +1,87 @@
+package com.magento.devsync.communications;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small files, and the directories holding them, sent to the other endpoint
+ * in one WRITE-FILES request. A burst of small files then costs a frame
+ * between them rather than a request each. Entries are applied in order, so
+ * directories must be added before the files inside them. File contents are
+ * read as files are added.
+ */
+public class WriteBatch {
+
+    /**
+     * Largest file packed into a batch. Bigger files are sent with WRITE-FILE.
+     */
+    public static final long MAX_FILE_SIZE = 64 * 1024;
+
+    /**
+     * Rough upper bound on the encoded size of a batch.
+     */
+    public static final int MAX_BYTES = 1024 * 1024;
+
+    /**
+     * Maximum number of paths in a batch.
+     */
+    public static final int MAX_ENTRIES = 1000;
+
+    public static class Entry {
+
+        public final String path;
+        public final boolean isDirectory;
+        public final boolean canExecute;
+        public final long modifiedTime;
+        public final byte[] contents;
+
+        private Entry(String path, boolean isDirectory, boolean canExecute, long modifiedTime, byte[] contents) {
+            this.path = path;
+            this.isDirectory = isDirectory;
+            this.canExecute = canExecute;
+            this.modifiedTime = modifiedTime;
+            this.contents = contents;
+        }
+    }
+
+    private List<Entry> entries = new ArrayList<>();
+    private int estimatedBytes = 0;
+
+    /**
+     * Returns true if the file is small enough to be packed into a batch.
+     */
+    public static boolean canPack(File contents) {
+        return contents.length() <= MAX_FILE_SIZE;
+    }
+
+    public void addDirectory(String path) {
+        entries.add(new Entry(path, true, false, PathResolver.UNKNOWN_MODIFIED_TIME, null));
+        estimatedBytes += path.length() + 5;
+    }
+
+    /**
+     * Add a file, reading its contents now. The modification time is read
+     * first, so it is no newer than the contents.
+     */
+    public void addFile(String path, boolean canExecute, File contents) throws IOException {
+        long modifiedTime = PathResolver.stableModifiedTime(contents);
+        byte[] data = Files.readAllBytes(contents.toPath());
+        entries.add(new Entry(path, false, canExecute, modifiedTime, data));
+        estimatedBytes += path.length() + data.length + 18;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public boolean isFull() {
+        return entries.size() >= MAX_ENTRIES || estimatedBytes >= MAX_BYTES;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+}
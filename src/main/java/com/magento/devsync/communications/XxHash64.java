@@ -0,0 +1,130 @@
+package com.magento.devsync.communications;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The 64 bit xxHash algorithm (seed 0). Not cryptographic, but several times
+ * faster than MD5 and plenty to spot that a file has changed.
+ */
+public class XxHash64 implements FileHash {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    @Override
+    public String getName() {
+        return "xxh64";
+    }
+
+    @Override
+    public byte getId() {
+        return 3;
+    }
+
+    @Override
+    public int getLength() {
+        return 8;
+    }
+
+    @Override
+    public Hasher newHasher() {
+        return new XxHasher();
+    }
+
+    private static class XxHasher implements Hasher {
+
+        private long v1 = PRIME1 + PRIME2;
+        private long v2 = PRIME2;
+        private long v3 = 0;
+        private long v4 = -PRIME1;
+        private long totalLength = 0;
+
+        /**
+         * Input not yet hashed, as stripes are 32 bytes.
+         */
+        private ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            totalLength += length;
+            int end = offset + length;
+            if (pending.position() > 0) {
+                int n = Math.min(pending.remaining(), length);
+                pending.put(data, offset, n);
+                offset += n;
+                if (pending.hasRemaining()) {
+                    return;
+                }
+                stripe(pending, 0);
+                pending.clear();
+            }
+            if (end - offset >= 32) {
+                ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+                for (; end - offset >= 32; offset += 32) {
+                    stripe(buf, offset);
+                }
+            }
+            pending.put(data, offset, end - offset);
+        }
+
+        private void stripe(ByteBuffer buf, int offset) {
+            v1 = round(v1, buf.getLong(offset));
+            v2 = round(v2, buf.getLong(offset + 8));
+            v3 = round(v3, buf.getLong(offset + 16));
+            v4 = round(v4, buf.getLong(offset + 24));
+        }
+
+        @Override
+        public byte[] digest() {
+            long h;
+            if (totalLength >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = mergeRound(h, v1);
+                h = mergeRound(h, v2);
+                h = mergeRound(h, v3);
+                h = mergeRound(h, v4);
+            } else {
+                h = PRIME5;
+            }
+            h += totalLength;
+
+            int length = pending.position();
+            int i = 0;
+            for (; i + 8 <= length; i += 8) {
+                h ^= round(0, pending.getLong(i));
+                h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            }
+            if (i + 4 <= length) {
+                h ^= (pending.getInt(i) & 0xFFFFFFFFL) * PRIME1;
+                h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+                i += 4;
+            }
+            for (; i < length; i++) {
+                h ^= (pending.get(i) & 0xFF) * PRIME5;
+                h = Long.rotateLeft(h, 11) * PRIME1;
+            }
+
+            h ^= h >>> 33;
+            h *= PRIME2;
+            h ^= h >>> 29;
+            h *= PRIME3;
+            h ^= h >>> 32;
+            return ByteBuffer.allocate(8).putLong(h).array();
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * PRIME2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * PRIME1;
+        }
+
+        private static long mergeRound(long acc, long val) {
+            acc ^= round(0, val);
+            return acc * PRIME1 + PRIME4;
+        }
+    }
+}
@@ -15,4 +15,7 @@ public class SyncRule {
     @JsonProperty
     public List<String> exclude;
 
+    @JsonProperty
+    public boolean poll; // watch by scanning directories, not for events
+
 }
@@ -0,0 +1,39 @@
+package com.magento.devsync.filewatcher;
+
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes a WatchBackend saw to the entries of one watched directory.
+ */
+public class DirectoryEvents {
+
+    public static class Event {
+
+        public final WatchEvent.Kind<?> kind;
+        public final String name;
+
+        public Event(WatchEvent.Kind<?> kind, String name) {
+            this.kind = kind;
+            this.name = name;
+        }
+    }
+
+    public final String clientPath;
+    public final WatchBackend backend;
+    public final List<Event> events = new ArrayList<>();
+
+    /**
+     * Set if the directory must be compared with what it held before to
+     * find out what changed, as events were lost or the backend does not
+     * report them.
+     */
+    public final boolean rescan;
+
+    public DirectoryEvents(String clientPath, WatchBackend backend, boolean rescan) {
+        this.clientPath = clientPath;
+        this.backend = backend;
+        this.rescan = rescan;
+    }
+}
@@ -0,0 +1,97 @@
+package com.magento.devsync.filewatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a watched directory held when last looked at: the names of its
+ * entries, and the size and modification time of each file. Comparing it
+ * with what the directory holds now gives the changes made while events
+ * were being lost.
+ */
+public class DirectorySnapshot {
+
+    public static class Entry {
+
+        public final boolean isDirectory;
+        public final long size;
+        public final long modifiedTime;
+
+        private Entry(boolean isDirectory, long size, long modifiedTime) {
+            this.isDirectory = isDirectory;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+
+        /**
+         * Returns true if nothing seems to have changed. Directories always
+         * match, as what changes is their contents.
+         */
+        public boolean matches(Entry other) {
+            if (isDirectory || other.isDirectory) {
+                return isDirectory == other.isDirectory;
+            }
+            return size == other.size && modifiedTime == other.modifiedTime;
+        }
+    }
+
+    private Map<String,Entry> entries = new HashMap<>();
+
+    /**
+     * Read the entries of a directory, returning null if it cannot be read.
+     */
+    public static DirectorySnapshot take(File dir) {
+        DirectorySnapshot snapshot = new DirectorySnapshot();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for (Path path : stream) {
+                Entry entry = entryFor(path);
+                if (entry != null) {
+                    snapshot.entries.put(path.getFileName().toString(), entry);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Record what an entry is like now, or that it has gone.
+     */
+    public void update(String name, File file) {
+        Entry entry = entryFor(file.toPath());
+        if (entry == null) {
+            entries.remove(name);
+        } else {
+            entries.put(name, entry);
+        }
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public Map<String,Entry> getEntries() {
+        return entries;
+    }
+
+    private static Entry entryFor(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+                return new Entry(true, 0, 0);
+            }
+            return new Entry(false, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
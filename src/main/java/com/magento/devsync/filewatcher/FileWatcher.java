@@ -2,40 +2,83 @@ package com.magento.devsync.filewatcher;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import com.magento.devsync.communications.ConnectionLost;
+import com.magento.devsync.communications.FingerprintCache;
 import com.magento.devsync.communications.Logger;
 import com.magento.devsync.communications.PathResolver;
 import com.magento.devsync.config.Mount;
 import com.magento.devsync.config.SyncRule;
 import com.magento.devsync.config.YamlFile;
 
+/**
+ * Watches the synced trees, passing changes on to the listener once they
+ * settle. Changes are held back until no events have been seen for the
+ * quiet period (or the oldest change has waited the maximum delay), so a
+ * build writing hundreds of files sends them together once it has finished
+ * with them, rather than each file as the next one is started. Later
+ * changes to a path replace earlier ones. Changes inside a directory being
+ * deleted are dropped, as are files changed inside one being created (as
+ * its contents go with it).
+ * <p>
+ * Events come from the watch service, or for trees whose rule asks for it,
+ * from a PollingBackend. If the watch service loses the events for a
+ * directory, or a polled directory is due to be looked at, the directory is
+ * compared with a snapshot of what it held to work out what changed.
+ */
 public class FileWatcher {
 
+    /**
+     * Default time with no events before held back changes are sent.
+     */
+    public static final long DEFAULT_QUIET_MILLIS = 500;
+
+    /**
+     * Default longest time a change is held back while events keep coming.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+
+    private static volatile long quietMillis = DEFAULT_QUIET_MILLIS;
+    private static volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    private static enum Change {
+        FILE_CHANGED, FILE_DELETED, DIRECTORY_CREATED, DIRECTORY_DELETED, DIRECTORY_MOVED
+    }
+
     private YamlFile config;
     private PathResolver pathResolver;
-    private WatchService watchService;
+    private BlockingQueue<DirectoryEvents> queue = new LinkedBlockingQueue<>();
+    private WatchServiceBackend watchServiceBackend;
+    private PollingBackend pollingBackend;
     private Set<String> ignorePaths = new HashSet<>();
-    private Map<WatchKey,String> pathsByKey = new HashMap<>();
+    private Map<String,Object> directoryKeys = new HashMap<>();
+    private Map<String,DirectorySnapshot> snapshots = new HashMap<>();
+    private Map<String,WatchBackend> backends = new HashMap<>();
     private FileWatcherListener listener;
     private Filter filter;
     private Logger logger;
     private ModifiedFileHistory history;
-    private String bufferedFileNotification;
+    private LinkedHashMap<String,Change> pending = new LinkedHashMap<>();
+    private Map<String,String> moves = new HashMap<>();
+    private long firstPendingTime;
+    private long lastEventTime;
 
     public static interface Filter {
         /**
@@ -53,7 +96,28 @@ public class FileWatcher {
         this.logger = logger;
 
         // Get the watch service.
-        watchService = FileSystems.getDefault().newWatchService();
+        watchServiceBackend = new WatchServiceBackend(queue, logger);
+    }
+
+    /**
+     * Set how long the trees must be left alone before changes are sent.
+     */
+    public static void setQuietMillis(long millis) {
+        quietMillis = Math.max(0, millis);
+    }
+
+    /**
+     * Set the longest a change is held back while the trees keep changing.
+     */
+    public static void setMaxDelayMillis(long millis) {
+        maxDelayMillis = Math.max(0, millis);
+    }
+
+    /**
+     * The longest a change can be held back after its event arrives.
+     */
+    static long longestHoldMillis() {
+        return quietMillis + maxDelayMillis;
     }
 
     public void run() throws ConnectionLost {
@@ -73,8 +137,8 @@ public class FileWatcher {
 
                     // Register the watchers.
                     try {
-                        logger.debug("FileWatcher: registering " + clientPath);
-                        registerRecursive(clientPath);
+                        logger.debug("FileWatcher: registering " + clientPath + (sr.poll ? " (polling)" : ""));
+                        registerRecursive(clientPath, sr.poll ? pollingBackend() : watchServiceBackend);
                     } catch (IOException e) {
                         // TODO Auto-generated catch block
                         e.printStackTrace();
@@ -83,19 +147,36 @@ public class FileWatcher {
             }
         }
 
-        // Loop, getting events
+        // Loop, getting events, until closed.
         processEvents();
 
         // Remove listeners (clean up)
-        try {
-            watchService.close();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        closeBackends();
+    }
+
+    /**
+     * Stop watching, making run() return. May be called from any thread.
+     */
+    public void close() {
+        closeBackends();
+        queue.add(new DirectoryEvents(null, null, false));
+    }
+
+    private synchronized PollingBackend pollingBackend() {
+        if (pollingBackend == null) {
+            pollingBackend = new PollingBackend(queue);
+        }
+        return pollingBackend;
+    }
+
+    private synchronized void closeBackends() {
+        watchServiceBackend.close();
+        if (pollingBackend != null) {
+            pollingBackend.close();
         }
     }
 
-    private void registerRecursive(String clientPath) throws IOException {
+    private void registerRecursive(String clientPath, WatchBackend backend) throws IOException {
 
         if (ignorePaths.contains(clientPath)) {
             return;
@@ -106,156 +187,403 @@ public class FileWatcher {
             logger.infoVerbose("Warning: Asked to watch non-existing directory (ignoring) - " + clientPath);
             return;
         }
-        WatchKey key = f.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
-        pathsByKey.put(key, clientPath);
+        backend.register(clientPath, f);
+        backends.put(clientPath, backend);
+        directoryKeys.put(clientPath, fileKey(f));
+        DirectorySnapshot snapshot = DirectorySnapshot.take(f);
+        if (snapshot != null) {
+            snapshots.put(clientPath, snapshot);
+        }
 
         if (f.isDirectory()) {
             for (File child : f.listFiles()) {
                 if (child.isDirectory()) {
-                    registerRecursive(PathResolver.joinPath(clientPath, child.getName()));
+                    registerRecursive(PathResolver.joinPath(clientPath, child.getName()), backend);
                 }
             }
         }
     }
 
     /**
-     * Process all events for keys queued to the watcher
+     * The file system's identity for a file (such as its inode), which a
+     * rename does not change. Null if there is none.
+     */
+    private static Object fileKey(File f) {
+        try {
+            return Files.readAttributes(f.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the path of a directory deleted since changes were last sent,
+     * if the new directory is the same one renamed, otherwise null.
+     */
+    private String movedFrom(String clientPath) {
+        Object key = directoryKeys.get(clientPath);
+        if (key == null) {
+            return null;
+        }
+        for (Map.Entry<String,Change> e : pending.entrySet()) {
+            if (e.getValue() == Change.DIRECTORY_DELETED && key.equals(directoryKeys.get(e.getKey()))) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop tracking a directory (and the directories below it) that has been
+     * deleted or moved.
+     */
+    private void forgetDirectory(String clientPath) {
+        forget(directoryKeys, clientPath);
+        forget(snapshots, clientPath);
+        forget(backends, clientPath);
+    }
+
+    private static void forget(Map<String,?> map, String clientPath) {
+        Iterator<String> it = map.keySet().iterator();
+        while (it.hasNext()) {
+            String path = it.next();
+            if (path.equals(clientPath) || path.startsWith(clientPath + "/")) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Process all events queued by the backends, until closed.
      * @throws ConnectionLost 
      */
     void processEvents() throws ConnectionLost {
         
-        bufferedFileNotification = null;
+        pending.clear();
+        moves.clear();
 
         // Loop forever.
         while (true) {
 
-            // wait for key to be signalled
-            WatchKey key = null;
+            // wait for a directory's events
+            DirectoryEvents changes;
             try {
-                // Merge consecutive events for the same file.
-                if (bufferedFileNotification == null) {
-                    // If nothing buffered, just block waiting for event
+                if (pending.isEmpty()) {
+                    // If nothing held back, just block waiting for event
                     logger.debugVerbose("Waiting for next FS change.");
-                    key = watchService.take();
+                    changes = queue.take();
                 } else {
-                    // If something in buffer, poll for a short period.
+                    // Wait until the trees go quiet, or the oldest change
+                    // has been held back long enough.
+                    long wait = Math.min(lastEventTime + quietMillis, firstPendingTime + maxDelayMillis) - System.currentTimeMillis();
                     logger.debugVerbose("Polling for next FS change.");
-                    key = watchService.poll(500, TimeUnit.MILLISECONDS);
-                    if (key == null) {
-                        // Nothing more came through, flush the buffer
-                        // and block waiting for next file change.
-                        logger.debugVerbose("FS poll timed out.");
-                        flushBuffer();
-                        logger.debugVerbose("Blocking for next FS change.");
-                        key = watchService.take();
+                    changes = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (changes == null) {
+                        logger.debugVerbose("FS changes settled.");
+                        dispatchPending();
+                        continue;
                     }
                 }
-                logger.debugVerbose("Got a watch key!");
                 history.removeExpiredEntries();
             } catch (InterruptedException x) {
                 logger.debugVerbose("Exiting watch loop due to interrupt");
                 return;
             }
 
-            String clientPath = pathsByKey.get(key);
+            String clientPath = changes.clientPath;
             if (clientPath == null) {
-                logger.debugVerbose("WatchKey not recognized!!");
-                continue;
+                logger.debugVerbose("Exiting watch loop as watcher closed");
+                return;
             }
             logger.debugVerbose("Triggered by " + clientPath);
 
-            for (WatchEvent<?> event: key.pollEvents()) {
-                WatchEvent.Kind<?> kind = event.kind();
+            for (DirectoryEvents.Event event : changes.events) {
+                processEvent(event.kind, clientPath, event.name);
+            }
 
-                // Oops, did we lose some events?
-                if (kind == StandardWatchEventKinds.OVERFLOW) {
-                    logger.debugVerbose("Warning - some events were lost"); // TODO
-                    continue;
-                }
+            // Work out what the lost (or unreported) events would have said.
+            boolean changed = !changes.events.isEmpty();
+            if (changes.rescan) {
+                boolean found = rescan(clientPath);
+                changes.backend.rescanned(clientPath, found);
+                changed |= found;
+            }
 
-                // Context for directory entry event is the file name of entry
-                WatchEvent<Path> ev = cast(event);
-                Path name = ev.context();
-                String child = PathResolver.joinPath(clientPath, name.getFileName().toString());
+            // A scan that found nothing is not a sign the trees are busy.
+            if (changed) {
+                lastEventTime = System.currentTimeMillis();
+            }
+        }
+    }
 
-                // If directory is created, start watching it too.
-                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                    try {
-                        if (Files.isDirectory(Paths.get(child), LinkOption.NOFOLLOW_LINKS)) {
-                            registerRecursive(child);
-                        }
-                    } catch (IOException x) {
-                        // TODO
-                    }
-                }
+    private void processEvent(WatchEvent.Kind<?> kind, String clientPath, String name) throws ConnectionLost {
+        String child = PathResolver.joinPath(clientPath, name);
+        Path childPath = pathResolver.clientPathToFile(child).toPath();
 
-                // Run through exclusion list (directory contents will be excluded already, but
-                // individual files or the directory itself will come through because of the parent).
-                if (!ignorePaths.contains(child)) {
-
-                    // Process the event
-                    if (Files.isDirectory(Paths.get(child), LinkOption.NOFOLLOW_LINKS)) {
-                        flushBuffer();
-                        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                            listener.directoryCreated(child);
-                        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                            listener.directoryDeleted(child);
-                        } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-                            //TODO: Not sure what to do with this...
-                        }
-                    } else {
-                        // Its a plain file.
-                        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                            if (bufferedFileNotification != null
-                                    && bufferedFileNotification.equals(child)) {
-                                logger.debugVerbose("Not writing file to be deleted: " + bufferedFileNotification);
-                                bufferedFileNotification = null;
-                            }
-                            flushBuffer();
-                            listener.fileDeleted(child);
-                        } else if (kind == StandardWatchEventKinds.ENTRY_CREATE
-                                || kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-                            if (bufferedFileNotification != null) {
-                                // Flush if different, drop old event if same as
-                                // new event.
-                                if (!bufferedFileNotification.equals(child)) {
-                                    logger.debugVerbose("Buffered file " + bufferedFileNotification + " not same as " + child);
-                                    flushBuffer();
-                                } else {
-                                    // Do nothing, causing old event to be discarded
-                                    logger.debugVerbose("Merging events for buffered file " + bufferedFileNotification);
-                                }
-                            }
-                            logger.debugVerbose("Buffer set to " + child);
-                            bufferedFileNotification = child;
-                        }
-                    }
+        // Whatever happened, any cached fingerprint is out of date.
+        FingerprintCache.invalidate(childPath.toFile());
+
+        // Keep track of what the directory holds, in case events are lost.
+        DirectorySnapshot snapshot = snapshots.get(clientPath);
+        if (snapshot != null) {
+            snapshot.update(name, childPath.toFile());
+        }
+
+        // If directory is created, start watching it too.
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(childPath, LinkOption.NOFOLLOW_LINKS)) {
+            watchNewDirectory(child, backends.get(clientPath));
+        }
+
+        if (!ignored(child, name)) {
+
+            // Process the event
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE && directoryKeys.containsKey(child)) {
+                // A rename comes through as delete then create, so
+                // the directory key is kept until the delete is sent
+                // in case a directory with the same key turns up.
+                addPending(child, Change.DIRECTORY_DELETED);
+            } else if (Files.isDirectory(childPath, LinkOption.NOFOLLOW_LINKS)) {
+                String from = kind == StandardWatchEventKinds.ENTRY_CREATE && !insideNewDirectory(child) ? movedFrom(child) : null;
+                if (from != null) {
+                    pending.remove(from);
+                    forgetDirectory(from);
+                    moves.put(child, from);
+                    addPending(child, Change.DIRECTORY_MOVED);
+                } else if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    addPending(child, Change.DIRECTORY_CREATED);
+                } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                    addPending(child, Change.DIRECTORY_DELETED);
+                } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                    //TODO: Not sure what to do with this...
+                }
+            } else {
+                // Its a plain file.
+                if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                    addPending(child, Change.FILE_DELETED);
+                } else if (kind == StandardWatchEventKinds.ENTRY_CREATE
+                        || kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                    addPending(child, Change.FILE_CHANGED);
                 }
             }
+        }
+    }
 
-            // reset key and remove from set if directory no longer accessible
-            boolean valid = key.reset();
-            if (!valid) {
-                pathsByKey.remove(key);
+    /**
+     * Run through exclusion list (directory contents will be excluded
+     * already, but individual files or the directory itself will come
+     * through because of the parent). Temporary files used while rebuilding
+     * a file are never synced.
+     */
+    private boolean ignored(String child, String name) {
+        return ignorePaths.contains(child) || PathResolver.isTempFile(name);
+    }
 
-                // all directories are inaccessible
-                if (pathsByKey.isEmpty()) {
-                    break;
-                }
+    /**
+     * Start watching a new directory and the directories inside it, the
+     * same way as the directory it is in.
+     */
+    private void watchNewDirectory(String clientPath, WatchBackend backend) throws ConnectionLost {
+        if (backend == null) {
+            // Its directory is no longer watched.
+            return;
+        }
+        try {
+            // Send what happened to the path before, which registering
+            // replaces the directory key of.
+            if (pending.containsKey(clientPath)) {
+                dispatchPending();
+            }
+            registerRecursive(clientPath, backend);
+        } catch (IOException x) {
+            // TODO
+        }
+    }
+
+    /**
+     * Compare a directory with what it held before, and handle the
+     * differences as if their events had arrived, returning true if there
+     * were any. Files are compared by size and modification time, and a
+     * subdirectory replaced by another of the same name by its file key.
+     * Paths the other end wrote recently are skipped, as the change is
+     * most likely its own write. Subdirectories are rescanned separately,
+     * when their own events are lost or their own poll is due.
+     */
+    private boolean rescan(String clientPath) throws ConnectionLost {
+        DirectorySnapshot before = snapshots.get(clientPath);
+        DirectorySnapshot now = DirectorySnapshot.take(pathResolver.clientPathToFile(clientPath));
+        if (before == null || now == null) {
+            // Deleted, which the event for its parent says.
+            return false;
+        }
+        List<String> deleted = new ArrayList<>();
+        List<String> created = new ArrayList<>();
+        List<String> modified = new ArrayList<>();
+        for (Map.Entry<String,DirectorySnapshot.Entry> e : before.getEntries().entrySet()) {
+            DirectorySnapshot.Entry was = e.getValue();
+            DirectorySnapshot.Entry entry = now.get(e.getKey());
+            if (history.contains(PathResolver.joinPath(clientPath, e.getKey()))) {
+                continue;
+            }
+            if (entry == null) {
+                deleted.add(e.getKey());
+            } else if (entry.isDirectory != was.isDirectory || was.isDirectory && replaced(PathResolver.joinPath(clientPath, e.getKey()))) {
+                deleted.add(e.getKey());
+                created.add(e.getKey());
+            }
+        }
+        for (Map.Entry<String,DirectorySnapshot.Entry> e : now.getEntries().entrySet()) {
+            DirectorySnapshot.Entry was = before.get(e.getKey());
+            if (history.contains(PathResolver.joinPath(clientPath, e.getKey()))) {
+                continue;
+            }
+            if (was == null) {
+                created.add(e.getKey());
+            } else if (!was.matches(e.getValue())) {
+                modified.add(e.getKey());
+            }
+        }
+        boolean changed = !deleted.isEmpty() || !created.isEmpty() || !modified.isEmpty();
+        String found = "FileWatcher: rescan of " + clientPath + " found " + deleted.size() + " deleted, "
+                + created.size() + " created and " + modified.size() + " modified";
+        if (changed) {
+            logger.debug(found);
+        } else {
+            logger.debugVerbose(found);
+        }
+
+        // Events update the snapshot as they are handled.
+        snapshots.put(clientPath, now);
+        for (String name : deleted) {
+            processEvent(StandardWatchEventKinds.ENTRY_DELETE, clientPath, name);
+        }
+        for (String name : created) {
+            processEvent(StandardWatchEventKinds.ENTRY_CREATE, clientPath, name);
+        }
+        for (String name : modified) {
+            processEvent(StandardWatchEventKinds.ENTRY_MODIFY, clientPath, name);
+        }
+        return changed;
+    }
+
+    /**
+     * Returns true if a watched directory has been replaced by another of
+     * the same name.
+     */
+    private boolean replaced(String clientPath) {
+        Object key = directoryKeys.get(clientPath);
+        return key != null && !key.equals(fileKey(pathResolver.clientPathToFile(clientPath)));
+    }
+
+    /**
+     * Hold back a change until the trees settle. A change to a file replaces
+     * any earlier change to it. Anything else that already happened to the
+     * path is sent first, so the other end sees (say) a directory replaced
+     * by a file in the right order.
+     */
+    private void addPending(String path, Change change) throws ConnectionLost {
+        if ((change == Change.FILE_CHANGED || change == Change.DIRECTORY_CREATED) && insideNewDirectory(path)) {
+            logger.debugVerbose("Sent with new directory: " + path);
+            return;
+        }
+        Change previous = pending.get(path);
+        if (previous != null && !(isFileChange(previous) && isFileChange(change))) {
+            dispatchPending();
+        }
+        if (change == Change.DIRECTORY_DELETED) {
+            dropChangesInside(path);
+        }
+        if (pending.isEmpty()) {
+            firstPendingTime = System.currentTimeMillis();
+        }
+        logger.debugVerbose("Holding back " + change + " " + path);
+        pending.remove(path);
+        pending.put(path, change);
+    }
+
+    private static boolean isFileChange(Change change) {
+        return change == Change.FILE_CHANGED || change == Change.FILE_DELETED;
+    }
+
+    /**
+     * Returns true if the path is inside a directory created or moved since
+     * changes were last sent, whose contents will be sent along with it.
+     * (Deletes inside a moved directory must still be sent, as the other
+     * end's copy is moved with whatever it held.)
+     */
+    private boolean insideNewDirectory(String path) {
+        for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+            Change change = pending.get(path.substring(0, i));
+            if (change == Change.DIRECTORY_CREATED || change == Change.DIRECTORY_MOVED) {
+                return true;
             }
         }
+        return false;
     }
-    
-    private void flushBuffer() throws ConnectionLost {
-        if (bufferedFileNotification != null) {
-            logger.debugVerbose("Flushing buffered file change: " + bufferedFileNotification);
-            listener.fileChanged(bufferedFileNotification);
-            bufferedFileNotification = null;
+
+    /**
+     * Forget the changes inside a directory that has been deleted. A
+     * directory moved into it still has to be removed from where it was, so
+     * then everything held back is sent instead.
+     */
+    private void dropChangesInside(String path) throws ConnectionLost {
+        String prefix = path + "/";
+        for (Map.Entry<String,Change> e : pending.entrySet()) {
+            if (e.getValue() == Change.DIRECTORY_MOVED && e.getKey().startsWith(prefix)) {
+                dispatchPending();
+                return;
+            }
+        }
+        Iterator<String> it = pending.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private WatchEvent<Path> cast(WatchEvent<?> event) {
-        return (WatchEvent<Path>) event;
+    /**
+     * Pass the changes held back on to the listener, in the order they were
+     * first seen. Runs of changed files are passed on together.
+     */
+    private void dispatchPending() throws ConnectionLost {
+        List<Map.Entry<String,Change>> changes = new ArrayList<>(pending.entrySet());
+        pending.clear();
+        logger.debugVerbose("Sending " + changes.size() + " FS changes.");
+        List<String> changedFiles = new ArrayList<>();
+        for (Map.Entry<String,Change> e : changes) {
+            String path = e.getKey();
+            if (e.getValue() == Change.FILE_CHANGED) {
+                changedFiles.add(path);
+                continue;
+            }
+            dispatchChangedFiles(changedFiles);
+            switch (e.getValue()) {
+            case FILE_DELETED:
+                listener.fileDeleted(path);
+                break;
+            case DIRECTORY_CREATED:
+                listener.directoryCreated(path);
+                break;
+            case DIRECTORY_DELETED:
+                forgetDirectory(path);
+                listener.directoryDeleted(path);
+                break;
+            case DIRECTORY_MOVED:
+                listener.pathMoved(moves.remove(path), path);
+                break;
+            default:
+                break;
+            }
+        }
+        dispatchChangedFiles(changedFiles);
+    }
+
+    private void dispatchChangedFiles(List<String> paths) throws ConnectionLost {
+        if (paths.size() == 1) {
+            listener.fileChanged(paths.get(0));
+        } else if (!paths.isEmpty()) {
+            listener.filesChanged(new ArrayList<>(paths));
+        }
+        paths.clear();
     }
 }
@@ -1,12 +1,21 @@
 package com.magento.devsync.filewatcher;
 
+import java.util.List;
+
 import com.magento.devsync.communications.ConnectionLost;
 
 public interface FileWatcherListener {
 
     void fileChanged(String path) throws ConnectionLost;
+
+    /**
+     * Several files changed at once, which may be sent together.
+     */
+    void filesChanged(List<String> paths) throws ConnectionLost;
+
     void fileDeleted(String path) throws ConnectionLost;
     void directoryCreated(String path) throws ConnectionLost;
     void directoryDeleted(String path) throws ConnectionLost;
+    void pathMoved(String from, String to) throws ConnectionLost;
 
 }
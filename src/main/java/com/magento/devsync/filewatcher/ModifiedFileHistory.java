@@ -6,12 +6,17 @@ import java.util.HashSet;
 public class ModifiedFileHistory {
 
     private static final int EXPIRY_SECONDS = 5;
+    private int expirySeconds;
     private long baseTime;
     private ArrayList<HashSet<String> > history = new ArrayList<>();
     private String inProgress;
 
     public ModifiedFileHistory() {
-        for (int i = 0; i < EXPIRY_SECONDS; i++) {
+        // The file watcher checks the history when it sends a change on,
+        // which can be well after the event, so remember writes for that
+        // much longer.
+        expirySeconds = EXPIRY_SECONDS + (int) ((FileWatcher.longestHoldMillis() + 999) / 1000);
+        for (int i = 0; i < expirySeconds; i++) {
             history.add(new HashSet<String>());
         }
         baseTime = System.currentTimeMillis() / 1000;
@@ -26,6 +31,14 @@ public class ModifiedFileHistory {
         inProgress = null;
     }
 
+    /**
+     * Record a change made to a file without writing it, such as setting its
+     * modification time.
+     */
+    synchronized public void modified(String path) {
+        history.get(0).add(path);
+    }
+
     synchronized public boolean beingWrittenTo(String path) {
         return inProgress != null && inProgress.equals(path); 
     }
@@ -42,7 +55,7 @@ public class ModifiedFileHistory {
 
     public void removeExpiredEntries() {
         long current = System.currentTimeMillis() / 1000;
-        if (current > baseTime + EXPIRY_SECONDS) {
+        if (current > baseTime + expirySeconds) {
             // Long time ago, just wipe the history completely.
             for (HashSet<String> timeSlice : history) {
                 timeSlice.clear();
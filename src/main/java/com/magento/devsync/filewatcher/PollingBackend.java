@@ -0,0 +1,132 @@
+package com.magento.devsync.filewatcher;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directories by asking for each to be rescanned every so often,
+ * for trees too big to register with the watch service (such as vendor/),
+ * or on file systems whose events are not reported (such as some network
+ * and shared folder mounts). Directories that change are rescanned often,
+ * and each scan that finds nothing doubles the wait before the next, so
+ * the many directories that never change cost little. A directory is not
+ * scanned again until the last scan has been done, so a busy watcher is
+ * not flooded with them.
+ */
+public class PollingBackend implements WatchBackend {
+
+    /**
+     * Shortest time between scans of a directory, used once it changes.
+     */
+    public static final long MIN_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Default longest time between scans of a directory.
+     */
+    public static final long DEFAULT_MAX_INTERVAL_MILLIS = 30000;
+
+    private static volatile long maxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+
+    private class Poll implements Runnable {
+
+        private final String clientPath;
+        private final File dir;
+        private long interval;
+        private ScheduledFuture<?> next;
+
+        private Poll(String clientPath, File dir, long interval) {
+            this.clientPath = clientPath;
+            this.dir = dir;
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            synchronized (PollingBackend.this) {
+                next = null;
+                if (polls.get(clientPath) != this) {
+                    return;
+                }
+                if (!dir.isDirectory()) {
+                    // Gone, which the scan of its parent will find.
+                    polls.remove(clientPath);
+                    return;
+                }
+            }
+            queue.add(new DirectoryEvents(clientPath, PollingBackend.this, true));
+        }
+    }
+
+    private BlockingQueue<DirectoryEvents> queue;
+    private Map<String,Poll> polls = new HashMap<>();
+    private Random random = new Random();
+    private ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "File-Poller");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    public PollingBackend(BlockingQueue<DirectoryEvents> queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Set the longest time a directory that never changes goes unscanned.
+     */
+    public static void setMaxIntervalMillis(long millis) {
+        maxIntervalMillis = Math.max(MIN_INTERVAL_MILLIS, millis);
+    }
+
+    /**
+     * Directories are first scanned at a random point within the longest
+     * interval, so a big tree is not all scanned at once. A directory
+     * registered again (having just been created, say) is scanned soon.
+     */
+    @Override
+    public synchronized void register(String clientPath, File dir) {
+        Poll poll = polls.get(clientPath);
+        if (poll == null) {
+            poll = new Poll(clientPath, dir, maxIntervalMillis);
+            polls.put(clientPath, poll);
+            schedule(poll, MIN_INTERVAL_MILLIS + (long) (random.nextDouble() * maxIntervalMillis));
+        } else {
+            poll.interval = MIN_INTERVAL_MILLIS;
+            if (poll.next != null && poll.next.cancel(false)) {
+                schedule(poll, MIN_INTERVAL_MILLIS);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void rescanned(String clientPath, boolean changed) {
+        Poll poll = polls.get(clientPath);
+        if (poll == null || poll.next != null) {
+            return;
+        }
+        poll.interval = changed ? MIN_INTERVAL_MILLIS : Math.min(poll.interval * 2, maxIntervalMillis);
+        schedule(poll, poll.interval);
+    }
+
+    @Override
+    public synchronized void close() {
+        polls.clear();
+        executor.shutdownNow();
+    }
+
+    private void schedule(Poll poll, long delay) {
+        if (!executor.isShutdown()) {
+            poll.next = executor.schedule(poll, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
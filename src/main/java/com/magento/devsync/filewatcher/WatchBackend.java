@@ -0,0 +1,29 @@
+package com.magento.devsync.filewatcher;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where a FileWatcher finds out about changes to the directories it
+ * watches. Backends queue a DirectoryEvents for each change they see, from
+ * a thread of their own, so one FileWatcher can take events from several.
+ */
+public interface WatchBackend {
+
+    /**
+     * Start watching a directory (but not the directories inside it). May
+     * be called again for a directory already watched.
+     */
+    void register(String clientPath, File dir) throws IOException;
+
+    /**
+     * Called once a directory the backend asked to be rescanned has been,
+     * saying whether anything had changed.
+     */
+    void rescanned(String clientPath, boolean changed);
+
+    /**
+     * Stop watching and queueing events.
+     */
+    void close();
+}
@@ -0,0 +1,120 @@
+package com.magento.devsync.filewatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+import com.magento.devsync.communications.Logger;
+
+/**
+ * Watches directories with the JDK's WatchService (inotify on Linux), which
+ * reports changes as they happen. If it loses events for a directory, the
+ * directory is queued to be rescanned.
+ */
+public class WatchServiceBackend implements WatchBackend {
+
+    private WatchService watchService;
+    private Map<WatchKey,String> pathsByKey = new HashMap<>();
+    private BlockingQueue<DirectoryEvents> queue;
+    private Logger logger;
+
+    public WatchServiceBackend(BlockingQueue<DirectoryEvents> queue, Logger logger) throws IOException {
+        this.queue = queue;
+        this.logger = logger;
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processKeys();
+            }
+        }, "File-Watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public synchronized void register(String clientPath, File dir) throws IOException {
+        WatchKey key = dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        pathsByKey.put(key, clientPath);
+    }
+
+    @Override
+    public void rescanned(String clientPath, boolean changed) {
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.debug(e);
+        }
+    }
+
+    /**
+     * Queue the events of each key as it is signalled, until closed.
+     */
+    private void processKeys() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                logger.debugVerbose("Got a watch key!");
+
+                // Registered under the lock, so the path is known by now.
+                String clientPath;
+                synchronized (this) {
+                    clientPath = pathsByKey.get(key);
+                }
+                if (clientPath == null) {
+                    logger.debugVerbose("WatchKey not recognized!!");
+                    key.reset();
+                    continue;
+                }
+                logger.debugVerbose("Triggered by " + clientPath);
+
+                boolean overflowed = false;
+                DirectoryEvents changes = null;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Oops, we lost some events.
+                        overflowed = true;
+                        continue;
+                    }
+                    if (changes == null) {
+                        changes = new DirectoryEvents(clientPath, this, false);
+                    }
+                    // Context for directory entry event is the file name of entry
+                    Path name = (Path) event.context();
+                    changes.events.add(new DirectoryEvents.Event(event.kind(), name.getFileName().toString()));
+                }
+                if (changes != null) {
+                    queue.add(changes);
+                }
+                if (overflowed) {
+                    logger.debug("FileWatcher: events lost for " + clientPath + ", rescanning it");
+                    queue.add(new DirectoryEvents(clientPath, this, true));
+                }
+
+                // reset key and remove from set if directory no longer accessible
+                if (!key.reset()) {
+                    synchronized (this) {
+                        pathsByKey.remove(key);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            logger.debugVerbose("Exiting watch loop as watch service closed");
+        } catch (InterruptedException e) {
+            logger.debugVerbose("Exiting watch loop due to interrupt");
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.magento.devsync.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.magento.devsync.communications.ChannelMultiplexer;
+import com.magento.devsync.communications.Logger;
+
+/**
+ * Services all client sockets from one thread using a Selector, instead of a
+ * multiplexer thread and a slave (reactor) thread per connection. Frames are
+ * read without blocking, and requests from clients are processed on a fixed
+ * size pool of worker threads. Each connection still has a master thread to
+ * sync and watch the server files, which spends most of its time waiting.
+ */
+public class SelectorServer implements Runnable {
+
+    /**
+     * Default number of worker threads processing client requests.
+     */
+    public static final int DEFAULT_WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private Selector selector;
+    private ServerSocketChannel serverSocket;
+    private ExecutorService workers;
+    private Logger logger;
+    private String templateDir;
+    private Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+    public SelectorServer(ServerSocketChannel serverSocket, int workerCount, Logger logger, String templateDir) throws IOException {
+        this.serverSocket = serverSocket;
+        this.logger = logger;
+        this.templateDir = templateDir;
+        this.selector = Selector.open();
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Server-Worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        serverSocket.configureBlocking(false);
+        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                logger.warn(e);
+                return;
+            }
+
+            Runnable task;
+            while ((task = selectorTasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        conn.writable();
+                    }
+                    if (key.isReadable()) {
+                        conn.readable();
+                    }
+                } catch (CancelledKeyException e) {
+                    // Socket was closed, nothing more to do.
+                } catch (IOException e) {
+                    logger.warn(e);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket = serverSocket.accept();
+        if (socket == null) {
+            return;
+        }
+        logger.infoVerbose("Accepted client connection request");
+        socket.configureBlocking(false);
+
+        Connection conn = new Connection(socket);
+        ServerConnection s = new ServerConnection(conn.multiplexer, workers, logger, templateDir);
+        conn.key = socket.register(selector, SelectionKey.OP_READ, conn);
+
+        Thread serverThread = new Thread(s, "Server-Socket");
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    /**
+     * Run a task on the selector thread, which owns the selection keys.
+     */
+    private void runOnSelectorThread(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * A client socket. The multiplexer writes frames to it from the master
+     * and worker threads; if the socket send buffer is full the writing
+     * thread waits for the selector thread to report it writable again.
+     */
+    private class Connection extends OutputStream {
+
+        private SocketChannel socket;
+        private SelectionKey key;
+        private ChannelMultiplexer multiplexer;
+        private boolean writable = true;
+        private boolean closed = false;
+        private Runnable enableWriteInterest = new Runnable() {
+            @Override
+            public void run() {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        };
+        private Runnable resumeReading = new Runnable() {
+            @Override
+            public void run() {
+                if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) == 0) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    // Deliver the message that did not fit, even if nothing
+                    // more has arrived on the socket.
+                    readable();
+                }
+            }
+        };
+
+        public Connection(SocketChannel socket) throws IOException {
+            this.socket = socket;
+            this.multiplexer = new ChannelMultiplexer(socket, this);
+            this.multiplexer.setResumeListener(new Runnable() {
+                @Override
+                public void run() {
+                    runOnSelectorThread(resumeReading);
+                }
+            });
+        }
+
+        /**
+         * Called on the selector thread when there is data to read. If a
+         * channel's queue is full, stop reading until it has room, leaving
+         * the client to be held back by TCP flow control.
+         */
+        public void readable() {
+            if (multiplexer.receiveAvailable()) {
+                if (multiplexer.isReceivePaused()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            } else {
+                // Release any threads waiting to write before the multiplexer
+                // cleans up, as it needs the write lock they hold.
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+                multiplexer.disconnected();
+                key.cancel();
+            }
+        }
+
+        /**
+         * Called on the selector thread once the socket can be written to.
+         */
+        public void writable() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            synchronized (this) {
+                writable = true;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                synchronized (this) {
+                    if (closed) {
+                        throw new IOException("Socket closed");
+                    }
+                }
+                if (socket.write(buf) == 0) {
+                    awaitWritable();
+                }
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            synchronized (this) {
+                writable = false;
+            }
+            runOnSelectorThread(enableWriteInterest);
+            synchronized (this) {
+                while (!writable && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            socket.close();
+        }
+    }
+}
@@ -2,12 +2,16 @@ package com.magento.devsync.server;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import com.magento.devsync.communications.Channel;
 import com.magento.devsync.communications.ChannelMultiplexer;
 import com.magento.devsync.communications.ConnectionLost;
 import com.magento.devsync.communications.Logger;
 import com.magento.devsync.communications.Reactor;
+import com.magento.devsync.communications.Requestor;
+import com.magento.devsync.communications.StripedWrite;
 import com.magento.devsync.filewatcher.ModifiedFileHistory;
 
 /**
@@ -28,6 +32,8 @@ public class ServerConnection implements Runnable {
         ChannelMultiplexer multiplexer = new ChannelMultiplexer(socket);
         Channel toClientChannel = new Channel(1, multiplexer);
         Channel fromClientChannel = new Channel(0, multiplexer);
+        List<Requestor> stripes = StripedWrite.createRequestors(multiplexer, StripedWrite.SERVER_TO_CLIENT_CHANNEL, logger);
+        StripedWrite.createReactors(multiplexer, StripedWrite.CLIENT_TO_SERVER_CHANNEL, logger);
         Thread multiThread = new Thread(multiplexer, "Server-Multiplexer");
         multiThread.setDaemon(true);
         multiThread.start();
@@ -35,6 +41,7 @@ public class ServerConnection implements Runnable {
         ModifiedFileHistory history = new ModifiedFileHistory();
 
         master = new ServerMaster(toClientChannel, logger, history, templateDir);
+        master.setStripes(stripes);
 
         // Slave is a child thread, master is the current thread.
         logger.debug("Spawning slave thread");
@@ -44,6 +51,28 @@ public class ServerConnection implements Runnable {
         slaveThread.start();
     }
 
+    /**
+     * Constructor for a socket serviced by a SelectorServer. Frames are read
+     * by the selector thread, and requests from the client are processed on
+     * the worker pool rather than by a slave thread per connection.
+     */
+    public ServerConnection(ChannelMultiplexer multiplexer, Executor workers, Logger logger, String templateDir) {
+        logger.debug("SERVER CREATED");
+
+        Channel toClientChannel = new Channel(1, multiplexer);
+        Channel fromClientChannel = new Channel(0, multiplexer);
+        List<Requestor> stripes = StripedWrite.createRequestors(multiplexer, StripedWrite.SERVER_TO_CLIENT_CHANNEL, logger);
+        StripedWrite.createReactors(multiplexer, StripedWrite.CLIENT_TO_SERVER_CHANNEL, workers, logger);
+
+        ModifiedFileHistory history = new ModifiedFileHistory();
+
+        master = new ServerMaster(toClientChannel, logger, history, templateDir);
+        master.setStripes(stripes);
+
+        slave = new Reactor(fromClientChannel, master, logger, history);
+        fromClientChannel.dispatchTo(workers, slave);
+    }
+
     @Override
     public void run() {
         try {
@@ -31,4 +31,15 @@ public class ServerFileWatcher {
         fileSync.run();
     }
 
+    /**
+     * Sync the changes queued while disconnected over a new connection.
+     */
+    public void resume(Requestor requestor) throws ConnectionLost {
+        fileSync.resume(requestor);
+    }
+
+    public void close() {
+        fileSync.close();
+    }
+
 }
@@ -2,6 +2,15 @@ package com.magento.devsync.server;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.magento.devsync.communications.Channel;
 import com.magento.devsync.communications.ConnectionLost;
@@ -14,46 +23,174 @@ import com.magento.devsync.filewatcher.ModifiedFileHistory;
 
 public class ServerMaster {
 
+    /**
+     * How long a session is kept after its connection is lost, for the
+     * client to reconnect to.
+     */
+    private static final long SESSION_TIMEOUT_MINUTES = 10;
+
+    /**
+     * Sessions by the token the client identified itself with.
+     */
+    private static final Map<String, ServerMaster> sessions = new HashMap<>();
+
+    private static final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Session-Expiry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private Channel channel;
     private Requestor requestor;
     private YamlFile config;
     private PathResolver pathResolver;
     private ServerFileWatcher fileWatcher;
     private Logger logger;
     private boolean startServerFileSync = false;
+    private boolean pushComplete = false;
     private Object lock = new Object();
     private ModifiedFileHistory modifiedFileHistory;
     private String templateDir;
+    private String sessionToken;
+    private boolean resumed = false;
+    private volatile boolean watching = false;
+    private boolean takenOver = false;
+    private boolean connected = true;
 
     public ServerMaster(Channel channel, Logger logger, ModifiedFileHistory modifiedFileHistory, String templateDir) {
+        this.channel = channel;
         this.logger = logger;
         this.modifiedFileHistory = modifiedFileHistory;
         this.templateDir = templateDir;
         requestor = new Requestor(channel, logger);
     }
 
+    /**
+     * Send large files to the client in parallel over these stripe channels.
+     */
+    public void setStripes(List<Requestor> stripes) {
+        requestor.setStripes(stripes);
+    }
+
+    /**
+     * Called during the protocol version check with the token the client
+     * identifies its session by. If the session is still kept from an
+     * earlier connection whose initial sync completed, this connection
+     * takes it over: its file watcher is still running, and the changes it
+     * queued meanwhile are sent instead of a full server sync. Returns true
+     * if the session was resumed.
+     */
+    public boolean resumeSession(String token) {
+        synchronized (sessions) {
+            sessionToken = token;
+            ServerMaster previous = sessions.put(token, this);
+            if (previous == null) {
+                return false;
+            }
+            // In case the old connection has not noticed it is dead yet.
+            previous.channel.close();
+            if (!previous.watching) {
+                return false;
+            }
+            previous.takenOver = true;
+            config = previous.config;
+            pathResolver = previous.pathResolver;
+            fileWatcher = previous.fileWatcher;
+            modifiedFileHistory = previous.modifiedFileHistory;
+            watching = true;
+            resumed = true;
+            return true;
+        }
+    }
+
+    /**
+     * The history of files written by the other end, which is that of the
+     * earlier connection if the session was resumed.
+     */
+    public ModifiedFileHistory getModifiedFileHistory() {
+        return modifiedFileHistory;
+    }
+
+    /**
+     * Called once the connection has gone. The file watcher, if running,
+     * keeps queueing changes for a while in case the client reconnects.
+     */
+    public void disconnected() {
+        synchronized (lock) {
+            connected = false;
+            lock.notifyAll();
+        }
+        synchronized (sessions) {
+            boolean current = sessionToken != null && sessions.get(sessionToken) == this;
+            if (!current || !watching) {
+                if (current) {
+                    sessions.remove(sessionToken);
+                }
+                if (watching && !takenOver) {
+                    // Replaced by a connection that could not resume it.
+                    fileWatcher.close();
+                }
+                return;
+            }
+        }
+        expiry.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sessions) {
+                    if (sessions.get(sessionToken) != ServerMaster.this) {
+                        return;
+                    }
+                    sessions.remove(sessionToken);
+                }
+                logger.debug("Session " + sessionToken + " expired");
+                fileWatcher.close();
+            }
+        }, SESSION_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
     public void setConfig(YamlFile config, PathResolver pathResolver) {
         this.config = config;
         this.pathResolver = pathResolver;
-        fileWatcher = new ServerFileWatcher(config, pathResolver, requestor, logger, modifiedFileHistory);
+        if (!resumed) {
+            fileWatcher = new ServerFileWatcher(config, pathResolver, requestor, logger, modifiedFileHistory);
+        }
     }
 
     public void run() throws ConnectionLost {
 
         // Wait for client to tell us to start doing a sync pass.
-        synchronized (lock) {
-            while (!startServerFileSync) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                    // Ignore
-                }
+        if (!waitForClient(false)) {
+            return;
+        }
+
+        if (resumed) {
+            // The file watcher is still running on the thread of the
+            // connection that started the session.
+            if (!waitForClient(true)) {
+                return;
             }
+            logger.infoVerbose("* Server syncing changes made while disconnected");
+            fileWatcher.resume(requestor);
+            try {
+                requestor.syncComplete(0);
+            } catch (IOException e) {
+                throw new ConnectionLost(e);
+            }
+            return;
         }
 
-        // Starting server side file sync (server is master now).
+        // Starting server side file sync, while the client pushes its
+        // files. Trees the client pushes too are left until it has.
         logger.infoVerbose("* Server syncing initial changes to server");
         SyncTreeWalker walker = new SyncTreeWalker(requestor, config, pathResolver, logger);
-        walker.serverToClientWalk();
+        walker.serverToClientWalk(false);
+        if (!waitForClient(true)) {
+            return;
+        }
+        walker.serverToClientWalk(true);
 
         // Tell client server sync done, client now drives the next step.
         try {
@@ -65,6 +202,12 @@ public class ServerMaster {
 
         // Watch file system and send to server.
         logger.infoVerbose("Listening for requests on server to send to client");
+        synchronized (lock) {
+            if (!connected) {
+                return;
+            }
+            watching = true;
+        }
         fileWatcher.run();
     }
 
@@ -80,15 +223,56 @@ public class ServerMaster {
             lock.notifyAll();
         }
     }
+
+    /**
+     * Called by the receiver thread once the client has pushed the trees
+     * that overlap those we pull.
+     */
+    public void pushComplete() {
+        synchronized (lock) {
+            pushComplete = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for START-SERVER-SYNC, or PUSH-COMPLETE if pushed is set.
+     * Returns false if the connection was lost first.
+     */
+    private boolean waitForClient(boolean pushed) {
+        synchronized (lock) {
+            while (!(pushed ? pushComplete : startServerFileSync)) {
+                if (!connected) {
+                    return false;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+            return true;
+        }
+    }
     
+    /**
+     * Copy the template project to the client. Requests are sent without
+     * waiting for each response in turn (the client creates each directory
+     * before the files inside it, as it handles requests in order), then
+     * all the responses are collected at the end.
+     */
     public void initializeProject() throws ConnectionLost {
         if (templateDir == null) {
             return;
         }
-        fileWalk(".");
+        List<Future<Boolean>> responses = new ArrayList<>();
+        fileWalk(".", responses);
+        for (Future<Boolean> response : responses) {
+            Requestor.await(response);
+        }
     }
     
-    private void fileWalk(String path) throws ConnectionLost {
+    private void fileWalk(String path, List<Future<Boolean>> responses) throws ConnectionLost {
         File f = new File(PathResolver.joinPath(templateDir, path));
         if (!f.exists()) {
             logger.info("Project initilaization template directory does not exist: " + templateDir);
@@ -96,14 +280,14 @@ public class ServerMaster {
         }
         try {
             if (f.isDirectory()) {
-                requestor.createDirectory(path);
+                responses.add(requestor.createDirectoryAsync(path));
                 File[] files = f.listFiles();
                 for (File child : files) {
-                    fileWalk(path + "/" + child.getName());
+                    fileWalk(path + "/" + child.getName(), responses);
                 }
             } else {
                 boolean canExecute = f.canExecute();
-                requestor.writeFile(path, canExecute, f);
+                responses.add(requestor.writeFileAsync(path, canExecute, f));
             }
         } catch (IOException e) {
             e.printStackTrace();
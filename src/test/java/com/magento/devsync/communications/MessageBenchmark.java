@@ -0,0 +1,117 @@
+package com.magento.devsync.communications;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Development aid that checks encoding and decoding messages does not create
+ * garbage once the buffer pool has warmed up. It builds PATH-FINGERPRINT-BATCH
+ * messages laid out as Requestor sends them, compresses and decompresses them as the multiplexer does,
+ * then decodes them, measuring the bytes allocated by the thread. The only
+ * allocation allowed is the MessageWriter and MessageReader objects
+ * themselves, so the bytes allocated per message must not grow with the
+ * number of paths in the message.
+ * <p>
+ * It lives with the tests so it is not packaged, and is not run by the
+ * build. Run with:
+ * java -cp target/classes:target/test-classes com.magento.devsync.communications.MessageBenchmark
+ */
+public class MessageBenchmark {
+
+    private static final int SMALL_MESSAGE_PATHS = 10;
+    private static final int LARGE_MESSAGE_PATHS = 100;
+    private static final int WARMUP_MESSAGES = 50000;
+    private static final int MEASURED_MESSAGES = 100000;
+
+    private static final String[] PATHS = new String[LARGE_MESSAGE_PATHS];
+    private static final int DIGEST_LENGTH = FileHashes.getDefault().getLength();
+    private static final Fingerprint FINGERPRINT = new Fingerprint(false, new byte[DIGEST_LENGTH], 12345, 1500000000000L);
+
+    private static FrameCodec codec = new DeflateCodec();
+    private static StringRef ref = new StringRef();
+    private static long checksum = 0;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < PATHS.length; i++) {
+            PATHS[i] = "app/code/Magento/Catalog/Model/Product" + i + ".php";
+        }
+
+        run(WARMUP_MESSAGES, SMALL_MESSAGE_PATHS);
+        run(WARMUP_MESSAGES, LARGE_MESSAGE_PATHS);
+        long small = measure(SMALL_MESSAGE_PATHS);
+        long large = measure(LARGE_MESSAGE_PATHS);
+        System.out.println("(checksum " + checksum + ")");
+
+        // A few bytes either way per message is measurement noise.
+        long perPath = (large - small) / (LARGE_MESSAGE_PATHS - SMALL_MESSAGE_PATHS);
+        if (perPath > 0) {
+            System.out.println("FAIL: " + perPath + " bytes of garbage per path");
+            System.exit(1);
+        }
+        System.out.println("OK: no garbage per path");
+    }
+
+    /**
+     * Returns the bytes allocated per message.
+     */
+    private static long measure(int paths) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        run(MEASURED_MESSAGES, paths);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println(MEASURED_MESSAGES + " messages of " + paths + " paths: "
+                + (elapsed / MEASURED_MESSAGES) + " ns and "
+                + (allocated / MEASURED_MESSAGES) + " bytes allocated per message");
+        return allocated / MEASURED_MESSAGES;
+    }
+
+    private static void run(int messages, int paths) throws Exception {
+        for (int m = 0; m < messages; m++) {
+            MessageWriter msg = new MessageWriter();
+            msg.putByte(ProtocolSpec.PATH_FINGERPRINT_BATCH);
+            msg.putInt(paths);
+            for (int i = 0; i < paths; i++) {
+                msg.putBoolean(false);
+                msg.putString(PATHS[i]);
+                msg.putFingerprint(FINGERPRINT);
+            }
+
+            // What the multiplexer does on each end of the socket.
+            int length = msg.size();
+            ByteBuffer compressed = BufferPool.acquire(length);
+            int compressedLength = codec.compress(msg.array(), 0, length, compressed.array());
+            compressed.limit(compressedLength);
+            msg.release();
+            ByteBuffer payload = BufferPool.acquire(length);
+            codec.decompress(compressed, payload.array(), length);
+            payload.limit(length);
+            BufferPool.release(compressed);
+
+            MessageReader reader = new MessageReader(payload);
+            reader.getByte();
+            int count = reader.getInt();
+            for (int i = 0; i < count; i++) {
+                // As Reactor.pathFingerprintBatch() reads them, except the
+                // path is not made into a String to look the file up with.
+                reader.getBoolean();
+                if (reader.getString(ref).startsWith("app/")) {
+                    checksum += ref.byteLength();
+                }
+                if (reader.getBoolean()) {
+                    checksum++;
+                }
+                ByteBuffer digest = reader.getBytes(DIGEST_LENGTH);
+                checksum += digest.get(digest.position());
+                checksum += reader.getLong();
+                checksum += reader.getLong();
+            }
+            reader.throwIfMore();
+            reader.release();
+        }
+    }
+}